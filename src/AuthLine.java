@@ -0,0 +1,123 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser for a client's authentication line, "username password", optionally
+ * followed by the sequence number of the last broadcast the client saw.
+ *
+ * Works in one pass over the raw bytes of the line, without a regex or
+ * substrings: tokens are recorded as ranges of the caller's array, the
+ * password is checked in place, and the only String made is the username.
+ * Any byte up to and including ' ' separates tokens, which is what the old
+ * trim() and split("\\s+") accepted for ASCII whitespace. Lines longer than
+ * MAX_BYTES are rejected before they are looked at.
+ */
+final class AuthLine {
+    /** Longest authentication line accepted, in bytes. */
+    static final int MAX_BYTES = 256;
+
+    private byte[] bytes;
+    private int userOffset;
+    private int userLength;
+    private int passwordOffset;
+    private int passwordLength;
+    private boolean sequenced;
+    private long resumeAfter;
+
+    /**
+     * Parse a line in place. The array must not change while this object
+     * is in use.
+     *
+     * @param line array holding the line
+     * @param offset where the line starts
+     * @param length length of the line, without its line ending
+     * @return true if the line is well formed: two or three tokens, the
+     *         third a number no lower than -1
+     */
+    boolean parse(byte[] line, int offset, int length) {
+        if (length > MAX_BYTES) {
+            return false;
+        }
+        this.bytes = line;
+        int end = offset + length;
+        int tokens = 0;
+        int i = offset;
+        while (true) {
+            while (i < end && (line[i] & 0xFF) <= ' ') {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            int start = i;
+            while (i < end && (line[i] & 0xFF) > ' ') {
+                i++;
+            }
+            switch (tokens++) {
+                case 0 -> {
+                    userOffset = start;
+                    userLength = i - start;
+                }
+                case 1 -> {
+                    passwordOffset = start;
+                    passwordLength = i - start;
+                }
+                case 2 -> {
+                    resumeAfter = parseSequence(line, start, i);
+                    if (resumeAfter < -1) {
+                        return false;
+                    }
+                }
+                default -> {
+                    return false;
+                }
+            }
+        }
+        sequenced = tokens == 3;
+        if (!sequenced) {
+            resumeAfter = -1;
+        }
+        return tokens >= 2;
+    }
+
+    /** @return the decimal number in [from, to), or Long.MIN_VALUE if it is not one */
+    private static long parseSequence(byte[] line, int from, int to) {
+        boolean negative = line[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 18) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /** @return the username, decoded as UTF-8 */
+    String user() {
+        return new String(bytes, userOffset, userLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a copy of the password bytes, which outlives the line's array;
+     *         the caller should zero it when done
+     */
+    byte[] password() {
+        return Arrays.copyOfRange(bytes, passwordOffset, passwordOffset + passwordLength);
+    }
+
+    /** @return true if the client sent a last-sequence token */
+    boolean sequenced() {
+        return sequenced;
+    }
+
+    /** @return the last-sequence token, or -1 if there was none */
+    long resumeAfter() {
+        return resumeAfter;
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+/*
+ To compile and run (requires JDK 21 or later):
+
+ javac src/*.java && java -cp src ChatterboxBench BENCHMARK
+
+ Example:
+ javac src/*.java && java -cp src ChatterboxBench bus
+*/
+
+/**
+ * Small, dependency-free benchmarks for the server's hot paths.
+ *
+ * Each benchmark warms up, then reports throughput or cost per operation.
+ * Results are only indicative: run on an otherwise idle machine and compare
+ * numbers from the same machine.
+ */
+public class ChatterboxBench {
+    /**
+     * Entry point.
+     *
+     * @param args the benchmark to run, followed by its optional arguments
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java -cp src ChatterboxBench <benchmark> [args]");
+            System.err.println("Benchmarks:");
+            System.err.println("  bus [publishers] [consumers] [messages]  message bus throughput");
+            System.err.println("  history [messages]                       history log append cost");
+            System.err.println("  search [messages]                        search index build and query cost");
+            System.err.println("  login [logins]                           auth line parse and check cost");
+            System.err.println("  credentials [users]                      credentials file load and startup time");
+            System.exit(1);
+        }
+        switch (args[0]) {
+            case "bus" -> benchBus(intArg(args, 1, 2), intArg(args, 2, 2), intArg(args, 3, 5_000_000));
+            case "history" -> benchHistory(intArg(args, 1, 1_000_000));
+            case "search" -> benchSearch(intArg(args, 1, 1_000_000));
+            case "login" -> benchLogin(intArg(args, 1, 2_000_000));
+            case "credentials" -> benchCredentials(intArg(args, 1, 500_000));
+            default -> {
+                System.err.println("Unknown benchmark '" + args[0] + "'");
+                System.exit(1);
+            }
+        }
+    }
+
+    private static int intArg(String[] args, int index, int fallback) {
+        return args.length > index ? Integer.parseInt(args[index]) : fallback;
+    }
+
+    /**
+     * Publish messages from several threads through a MessageBus to several
+     * consumers and report end-to-end messages per second.
+     */
+    private static void benchBus(int publishers, int consumers, int messages) throws InterruptedException {
+        ByteBuffer frame = ChatterboxServer.encodeLine("[bench]: hello");
+        System.out.println("bus: " + publishers + " publisher(s), " + consumers + " consumer(s), "
+                + messages + " message(s) per run");
+        ServerLog log = new ServerLog(ServerLog.Level.WARN, 1024, null, 0, 0);
+        for (int run = 0; run < 5; run++) {
+            MessageBus bus = new MessageBus(8192, 0, log);
+            CountDownLatch done = new CountDownLatch(consumers);
+            long total = (long) messages / publishers * publishers;
+            for (int c = 0; c < consumers; c++) {
+                long[] count = new long[1];
+                bus.addConsumer("bench-consumer-" + c, (message, endOfBatch) -> {
+                    if (++count[0] == total) {
+                        done.countDown();
+                    }
+                });
+            }
+            bus.start();
+
+            Thread[] threads = new Thread[publishers];
+            long start = System.nanoTime();
+            for (int p = 0; p < publishers; p++) {
+                threads[p] = new Thread(() -> {
+                    for (long i = total / publishers; i > 0; i--) {
+                        bus.publish(ChatterboxServer.LOBBY, "bench", "hello", frame);
+                    }
+                });
+                threads[p].start();
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            bus.close();
+
+            System.out.printf("  run %d: %,.0f messages/s (%d ns/message)%n", run + 1,
+                    total * 1e9 / elapsed, elapsed / total);
+        }
+        log.close();
+    }
+
+    /**
+     * Append messages to a MessageLog in a temporary directory, with the
+     * default segment size and no forced syncs, and report the cost per append.
+     */
+    private static void benchHistory(int messages) throws IOException {
+        ByteBuffer frame = ChatterboxServer.encodeLine("[bench]: a typical chat line of about sixty bytes.");
+        System.out.println("history: " + messages + " append(s) of " + frame.remaining() + " bytes per run");
+        Path directory = Files.createTempDirectory("chatterbox-bench");
+        try {
+            for (int run = 0; run < 5; run++) {
+                deleteFiles(directory);
+                long elapsed;
+                try (MessageLog history = new MessageLog(directory, 64 * 1024 * 1024,
+                        MessageLog.FsyncPolicy.NEVER, 0)) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < messages; i++) {
+                        history.append(i, System.currentTimeMillis(), "bench", ChatterboxServer.LOBBY, frame);
+                    }
+                    elapsed = System.nanoTime() - start;
+                }
+                System.out.printf("  run %d: %,.0f appends/s (%d ns/append)%n", run + 1,
+                        messages * 1e9 / elapsed, elapsed / messages);
+            }
+        } finally {
+            deleteFiles(directory);
+            Files.delete(directory);
+        }
+    }
+
+    /** Delete the segments and indexes a benchmark left in a directory. */
+    private static void deleteFiles(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Index synthetic chat lines drawn from a Zipf-like vocabulary, then
+     * report the cost of one- and two-word queries over the whole index.
+     */
+    private static void benchSearch(int messages) {
+        String[] vocabulary = new String[5_000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = "w" + Integer.toString(i, 36);
+        }
+        Random random = new Random(42);
+        SearchIndex index = new SearchIndex();
+        StringBuilder line = new StringBuilder();
+        long start = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            line.setLength(0);
+            for (int w = 0; w < 8; w++) {
+                // Squaring a uniform draw favours the first words, as in real text.
+                double u = random.nextDouble();
+                line.append(vocabulary[(int) (u * u * vocabulary.length)]).append(' ');
+            }
+            index.add(m, ChatterboxServer.LOBBY, line.toString());
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("search: indexed %d message(s), %d term(s) in %d ms (%d ns/message)%n",
+                messages, index.termCount(), elapsed / 1_000_000, elapsed / messages);
+
+        String[] queries = {vocabulary[0], vocabulary[100], vocabulary[4000],
+                vocabulary[0] + " " + vocabulary[1], vocabulary[10] + " " + vocabulary[3000]};
+        for (int run = 0; run < 3; run++) {
+            for (String query : queries) {
+                long queryStart = System.nanoTime();
+                long[] matches = index.search(query, ChatterboxServer.LOBBY, 20);
+                long queryElapsed = System.nanoTime() - queryStart;
+                System.out.printf("  run %d: '%s' -> %d match(es) in %.3f ms%n", run + 1, query,
+                        matches.length, queryElapsed / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Check authentication lines, as they arrive off the wire, against a
+     * class-sized set of users: the old way (decode, trim, regex split,
+     * plaintext String compare) and the way ChatterboxServer.login() does it
+     * (AuthLine, a copy of the password, CredentialStore.verify on the copy,
+     * then zeroing it), with a store whose cache already holds every user, as
+     * after a reconnect storm's first wave. The hand-off to the auth workers
+     * is left out. Then reports what a login costs when the cache misses and
+     * the password has to be hashed.
+     */
+    private static void benchLogin(int logins) {
+        int users = 1000;
+        Map<String, String> strings = new HashMap<>();
+        byte[][] lines = new byte[users][];
+        for (int u = 0; u < users; u++) {
+            String user = "student" + u;
+            String pass = "pw-" + Integer.toHexString(u * 7919);
+            strings.put(user, pass);
+            lines[u] = (user + " " + pass + (u % 2 == 0 ? "" : " " + u * 31L)).getBytes(StandardCharsets.UTF_8);
+        }
+        ChatterboxServerOptions defaults = new ChatterboxServerOptions();
+        // A hit never runs the slow hash, so a cheap one makes filling the cache quick.
+        CredentialStore credentials = new CredentialStore(strings, 1000, users, defaults.getLoginCacheTtlMillis());
+        for (byte[] line : lines) {
+            checkLogin(credentials, line);
+        }
+        System.out.println("login: " + logins + " login(s) per run, " + users + " user(s)");
+        long sink = 0;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < logins; i++) {
+                byte[] line = lines[i % users];
+                String[] parts = new String(line, StandardCharsets.UTF_8).trim().split("\\s+");
+                long resumeAfter = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+                String expected = strings.get(parts[0]);
+                if (expected != null && expected.equals(parts[1])) {
+                    sink += resumeAfter;
+                }
+            }
+            long split = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < logins; i++) {
+                sink += checkLogin(credentials, lines[i % users]);
+            }
+            long parsed = System.nanoTime() - start;
+            System.out.printf("  run %d: split %d ns/login, AuthLine + login check %d ns/login%n", run + 1,
+                    split / logins, parsed / logins);
+        }
+        CredentialStore uncached = new CredentialStore(Map.of("student", "pw"), defaults.getPbkdf2Iterations(),
+                0, 0);
+        byte[] password = "pw".getBytes(StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            uncached.verify("student", password, 0, password.length);
+        }
+        System.out.printf("  uncached check (%d PBKDF2 iterations): %,d us/login%n", defaults.getPbkdf2Iterations(),
+                (System.nanoTime() - start) / 20 / 1000);
+        if (sink == 42) {
+            System.out.println(); // keeps the work from being optimised away
+        }
+    }
+
+    /**
+     * The work ChatterboxServer.login() does for one auth line, without the
+     * hand-off to the auth workers.
+     *
+     * @return the line's last sequence if the login is accepted, else 0
+     */
+    private static long checkLogin(CredentialStore credentials, byte[] line) {
+        AuthLine auth = new AuthLine();
+        if (!auth.parse(line, 0, line.length)) {
+            return 0;
+        }
+        String user = auth.user();
+        byte[] password = auth.password();
+        try {
+            return credentials.verify(user, password, 0, password.length) ? auth.resumeAfter() : 0;
+        } finally {
+            Arrays.fill(password, (byte) 0);
+        }
+    }
+
+    /**
+     * Write a credentials file with a campus's worth of users to a temporary
+     * file, then report how long it takes to load, token by token through a
+     * Scanner as the server used to and through CredentialFile, and how long
+     * the whole startup path (load, then build the CredentialStore) takes
+     * when the file holds verifiers and when it holds plaintext passwords.
+     * Hashing every plaintext password would take hours, so that is timed on
+     * a sample of users and scaled up.
+     */
+    private static void benchCredentials(int users) throws IOException {
+        int iterations = new ChatterboxServerOptions().getPbkdf2Iterations();
+        Path file = Files.createTempFile("chatterbox-bench", ".txt");
+        Path verifiers = Files.createTempFile("chatterbox-bench", ".txt");
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int u = 0; u < users; u++) {
+                text.append("student").append(u).append(' ')
+                        .append("pw-").append(Integer.toHexString(u * 7919)).append('\n');
+            }
+            Files.writeString(file, text);
+            // Every user shares one verifier: decoding costs the same, and it saves hashing them all here.
+            String verifier = CredentialStore.encode("pw", iterations);
+            text.setLength(0);
+            for (int u = 0; u < users; u++) {
+                text.append("student").append(u).append(' ').append(verifier).append('\n');
+            }
+            Files.writeString(verifiers, text);
+            System.out.printf("credentials: %d user(s), %,d bytes plaintext, %,d bytes as verifiers%n", users,
+                    Files.size(file), Files.size(verifiers));
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                Map<String, String> scanned = new HashMap<>();
+                try (Scanner sc = new Scanner(file.toFile(), StandardCharsets.UTF_8)) {
+                    while (sc.hasNext()) {
+                        String user = sc.next();
+                        scanned.put(user, sc.next());
+                    }
+                }
+                long scanner = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                Map<String, String> parsed = CredentialFile.load(file);
+                long loaded = System.nanoTime() - start;
+                if (!parsed.equals(scanned)) {
+                    throw new IllegalStateException("CredentialFile and Scanner disagree");
+                }
+
+                start = System.nanoTime();
+                CredentialStore store = new CredentialStore(CredentialFile.load(verifiers), iterations, 0, 0);
+                long startup = System.nanoTime() - start;
+                if (store.size() != users) {
+                    throw new IllegalStateException("CredentialStore lost users");
+                }
+                System.out.printf("  run %d: Scanner %d ms, CredentialFile %d ms, startup from verifiers %d ms%n",
+                        run + 1, scanner / 1_000_000, loaded / 1_000_000, startup / 1_000_000);
+            }
+
+            int sample = Math.min(users, 100);
+            Map<String, String> some = CredentialFile.load(file).entrySet().stream().limit(sample)
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            long start = System.nanoTime();
+            CredentialFile.load(file);
+            long loaded = System.nanoTime() - start;
+            start = System.nanoTime();
+            new CredentialStore(some, iterations, 0, 0);
+            long hashed = System.nanoTime() - start;
+            System.out.printf("  startup from plaintext (%d PBKDF2 iterations, %d core(s)): about %,d s "
+                    + "(%d ms per %d users hashed)%n", iterations, Runtime.getRuntime().availableProcessors(),
+                    (loaded + hashed * users / sample) / 1_000_000_000, hashed / 1_000_000, sample);
+        } finally {
+            Files.delete(file);
+            Files.delete(verifiers);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+/*
+ To compile and run (requires JDK 21 or later):
+
+ javac src/*.java && java -cp src ChatterboxPasswords IN OUT [iterations]
+
+ Example:
+ javac src/*.java && java -cp src ChatterboxPasswords users.txt users.txt
+*/
+
+/**
+ * Converts a credentials file's plaintext passwords into verifiers, so the
+ * server need not hash every password each time it starts.
+ *
+ * Each user's plaintext password is hashed, in parallel, with a new random
+ * salt; entries that are already verifiers are copied unchanged, so running
+ * it again after adding users only hashes the new ones. The output is
+ * written to a temporary file and moved into place, so OUT may be IN, and a
+ * server watching the file sees one complete change.
+ */
+public class ChatterboxPasswords {
+    private static final String USAGE = "Usage: java -cp src ChatterboxPasswords <in> <out> [iterations]";
+
+    /**
+     * Entry point.
+     *
+     * @param args input file, output file, and optionally the PBKDF2
+     *             iteration count (default: the server's)
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        int iterations = args.length > 2 ? parseIterations(args[2])
+                : new ChatterboxServerOptions().getPbkdf2Iterations();
+        if (iterations <= 0) {
+            System.err.println("Error: iterations must be a positive integer, got '" + args[2] + "'");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        Path in = Path.of(args[0]);
+        Path out = Path.of(args[1]).toAbsolutePath();
+
+        long started = System.nanoTime();
+        Map<String, String> user2pass = CredentialFile.load(in);
+        List<String> lines = user2pass.entrySet().parallelStream()
+                .map(entry -> entry.getKey() + " " + (CredentialStore.isEncoded(entry.getValue())
+                        ? entry.getValue() : CredentialStore.encode(entry.getValue(), iterations)))
+                .toList();
+
+        Path temporary = Files.createTempFile(out.getParent(), out.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        System.out.println("Wrote " + lines.size() + " verifier(s) to " + out + " in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms.");
+    }
+
+    /** @return the iteration count given, or 0 if it is not a number */
+    private static int parseIterations(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
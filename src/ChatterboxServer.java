@@ -1,42 +1,76 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 /*
- To compile and run:
+ To compile and run (requires JDK 21 or later):
 
  javac src/*.java && java -cp src ChatterboxServer PORT_NUMBER CREDENTIALS_FILE
 
  Example:
  javac src/*.java && java -cp src ChatterboxServer 12345 sample_users.txt
+
+ To use the original thread-per-client mode:
+ javac src/*.java && java -cp src ChatterboxServer 12345 sample_users.txt --mode=blocking
 */
 
 /**
  * A simple multi-client chat server.
  *
  * Behavior:
- * - Accepts TCP connections on the given port.
- * - Prompts each client for "username password".
- * - Authenticates against the credentials map.
- * - After auth, broadcasts each client message to all connected clients.
- * - Sends a server heartbeat to all clients every 10 seconds.
+ * - Accepts TCP connections on the given port, either on a small set of
+ *   non-blocking selector threads (the default) or one thread per client.
+ * - Turns clients away at once, with a reason, when the server is full,
+ *   when too many are still logging in, or when one address connects too
+ *   often (--max-connections, --max-pending-logins, and --accept-rate-per-ip,
+ *   which is off by default).
+ * - Prompts each client for "username password", and disconnects clients
+ *   that do not answer in time (--auth-timeout-ms).
+ * - Authenticates against salted PBKDF2 hashes of the credentials, with
+ *   recent successful logins cached so a wave of reconnects stays cheap.
+ *   The credentials file is reloaded whenever it changes; users already
+ *   logged in are not affected.
+ * - After auth, replays the most recent broadcasts to the new client, then
+ *   broadcasts each client message to every client in the same room. All
+ *   clients start in the lobby; "/join ROOM" and "/leave" move between rooms.
+ * - Optionally limits how fast each user may send lines (--chat-rate,
+ *   --chat-burst); lines beyond that are dropped, and the sender is told.
+ * - Sends a heartbeat line to each client that has been idle for a while,
+ *   and drops clients that have stopped taking their output.
+ * - Optionally appends every broadcast to an on-disk history (--history-dir),
+ *   which clients can page through with "/history since TIME [limit N]"
+ *   and search with "/search WORDS", each within their current room.
  */
-public class ChatterboxServer {
-    /** Maximum simultaneous authenticated clients / pool size. */
-    private static final int MAX_CONNECTIONS = 100;
-
+public final class ChatterboxServer {
     private final int port;
 
     /**
@@ -45,63 +79,381 @@ public class ChatterboxServer {
      */
     private final Map<String, Connection> connections;
 
-    /** Map of username -> password loaded at startup. */
-    private final Map<String, String> user2pass;
+    /**
+     * Each user's allowance of lines, kept across reconnects so that logging
+     * in again does not refill it. Empty if lines are not limited.
+     */
+    private final Map<String, TokenBucket> chatLimits;
+
+    /** Salted hashes of the credentials, reloaded when their file changes. */
+    private final CredentialStore credentials;
+
+    /** Watches the credentials file, or null if it is not watched. */
+    private volatile CredentialReloader reloader;
+
+    private final ChatterboxServerOptions options;
+
+    /**
+     * One permit per admitted client, held from accept until disconnect.
+     * Clients beyond the limit are turned away instead of waiting unseen.
+     */
+    private final Semaphore admissions;
+
+    /**
+     * One permit per admitted client that has not yet sent its login line,
+     * so a reconnect storm cannot queue up more password checks than this.
+     */
+    private final Semaphore pendingLogins;
+
+    /**
+     * Each address's allowance of new connections; accept thread only.
+     * Buckets that have refilled are swept out as the map grows.
+     */
+    private final Map<InetAddress, TokenBucket> acceptLimits = new HashMap<>();
+
+    /** Size of acceptLimits at which full buckets are next swept out. */
+    private int acceptLimitsSweepAt = MIN_ACCEPT_LIMITS_SWEEP;
+
+    /** First line sent to every client, asking for credentials. */
+    static final String AUTH_PROMPT = "Please enter your username and password, separated by a space:";
+
+    /** Console and file output, written off the hot path. */
+    final ServerLog log;
+
+    /** Carries every broadcast, in one total order, to the server's consumers. */
+    private final MessageBus bus;
+
+    /** Bus consumers that deliver broadcasts to their share of the clients. */
+    private final ShardedFanOut fanOut;
+
+    /** On-disk record of every broadcast, or null if history is not kept. */
+    private final MessageLog history;
+
+    /** Full-text index over the history, or null if history is not kept. */
+    private final SearchIndex search;
+
+    /** Expires and compacts old history, or null if that is switched off. */
+    private final LogCompactor compactor;
+
+    /** Per-connection deadlines: login timeouts and keepalive checks. */
+    private final TimerWheel timers;
+
+    /** Pings idle clients and drops dead ones, or null if that is switched off. */
+    private final KeepAlive keepAlive;
+
+    /** Starts the writer thread of each blocking-mode connection. */
+    private final ThreadFactory writerThreads;
+
+    /**
+     * Checks passwords, off the I/O threads. Its size caps how much
+     * slow-hash work runs at once, however many clients log in together.
+     */
+    private final ExecutorService authWorkers;
+
+    /**
+     * Answers /history and /search, off the I/O threads: a query may scan a
+     * long stretch of history, or decompress a whole segment.
+     */
+    private final ExecutorService queryWorkers;
+
+    /** Most frames handed to a single gathering write. */
+    static final int MAX_GATHER = 256;
+
+    /** Most history lines returned by one /history command. */
+    static final int MAX_HISTORY_LIMIT = 1000;
+
+    /** Starting size of a connection's line buffer. */
+    static final int INITIAL_LINE_CAPACITY = 256;
+
+    /** Resolution of the connection timer wheel. */
+    static final int TIMER_TICK_MILLIS = 50;
+
+    /** Slots in the connection timer wheel; one turn is about 51 seconds. */
+    static final int TIMER_BUCKETS = 1024;
+
+    /** Most matches returned by one /search command. */
+    static final int SEARCH_LIMIT = 20;
+
+    /** The room every client is in when it logs in, and returns to on /leave. */
+    static final String LOBBY = "lobby";
+
+    /** Longest room name accepted by /join. */
+    static final int MAX_ROOM_NAME = 32;
+
+    /** Sent to a client that arrives while the server is at its connection limit. */
+    static final String SERVER_FULL = "Server is full. Please try again later.";
+
+    /** Sent to a client whose address has been connecting too often. */
+    static final String TOO_MANY_CONNECTIONS = "Too many connections from your address. Please try again later.";
+
+    /** Fewest per-address accept buckets worth sweeping. */
+    private static final int MIN_ACCEPT_LIMITS_SWEEP = 1024;
+
+    /**
+     * A client the server can send lines to, whatever the transport.
+     * Sending only queues the bytes on the connection's own bounded outbound
+     * queue; each transport drains that queue with its own writer, so a slow
+     * client never holds up the thread that is broadcasting. The queue's
+     * slow-consumer policy decides what happens when the client falls behind.
+     * Closing the Connection closes the underlying socket or channel.
+     */
+    abstract static class Connection implements AutoCloseable {
+        /** Frames waiting to be written to this client. */
+        final OutboundQueue outbound;
+
+        /** Set by login once the client has authenticated; null before that. */
+        volatile String user;
+
+        /** Fan-out shard that delivers broadcasts to this connection. */
+        volatile int shard;
+
+        /** Set once the connection has left the fan-out, even if its join is still pending. */
+        volatile boolean departed;
+
+        /**
+         * Room the client sends to; changed only by its own reader. The
+         * fan-out follows it through a move event on the bus.
+         */
+        volatile String room = LOBBY;
+
+        /**
+         * Room the fan-out delivers to this client in, set under the
+         * connection's lock by its shard; null until its join is processed.
+         */
+        String memberOf;
+
+        /** True if the client asked for each broadcast to carry its "#sequence " prefix. */
+        volatile boolean sequenced;
+
+        /** Sequence of the last broadcast a resuming client saw, or -1 for a fresh join. */
+        volatile long resumeAfter = -1;
+
+        /** System.nanoTime() of the last bytes read from the client. */
+        volatile long lastReadNanos;
+
+        /** System.nanoTime() when the client last took all the output queued for it. */
+        volatile long lastWriteNanos;
+
+        /** The pending login deadline or keepalive check, if any. */
+        volatile TimerWheel.Timeout timer;
+
+        /** True until the client's pending-login slot is given back; see endLoginWait. */
+        final AtomicBoolean awaitingLogin = new AtomicBoolean(true);
+
+        /** The user's allowance of lines, or null if they are not limited. */
+        volatile TokenBucket chatLimit;
+
+        /** Lines dropped because the user sent them too fast; written by the reading thread only. */
+        volatile long throttledLines;
+
+        /** True while lines are being dropped, so the client is told only once per flood. */
+        boolean throttled;
+
+        /**
+         * @param outbound the queue this connection's writer drains
+         */
+        Connection(OutboundQueue outbound) {
+            this.outbound = outbound;
+            this.lastReadNanos = this.lastWriteNanos = System.nanoTime();
+        }
+
+        /**
+         * Send a line of text to the client.
+         *
+         * @param msg message line to send (without newline)
+         * @throws IOException if the client connection is broken
+         */
+        void sendln(String msg) throws IOException {
+            send(encodeLine(msg));
+        }
+
+        /**
+         * Queue an already-encoded line for the client. The same buffer may be
+         * handed to many connections at once, so only a duplicate is queued and
+         * the caller's position never moves.
+         *
+         * @param frame read-only UTF-8 bytes of one line, newline included
+         * @throws IOException if the connection is closed, or is too far behind
+         *         and has just been disconnected by the slow-consumer policy
+         */
+        void send(ByteBuffer frame) throws IOException {
+            switch (outbound.offer(frame.duplicate())) {
+                case QUEUED -> onQueued();
+                case DROPPED -> { } // counted by the queue
+                case CLOSED -> throw new IOException("connection closed");
+                case OVERLOADED -> {
+                    String lag = outbound.describeLag();
+                    abort();
+                    throw new IOException("disconnected slow client"
+                            + (user != null ? " '" + user + "'" : "") + " (" + lag + ")");
+                }
+            }
+        }
+
+        /**
+         * Called after a frame is queued, to wake a writer that does not wait
+         * on the queue itself. Does nothing by default.
+         */
+        void onQueued() {
+        }
+
+        /**
+         * Cancel the pending login deadline or keepalive check, if any.
+         */
+        void cancelTimer() {
+            TimerWheel.Timeout pending = timer;
+            if (pending != null) {
+                pending.cancel();
+            }
+        }
+
+        /**
+         * Stop reading from the client, finish sending the output already
+         * queued, then close. Never waits, so it is safe from any thread.
+         */
+        abstract void closeAfterFlush();
+
+        /**
+         * Drop the client at once, discarding queued output. Unlike close(),
+         * never waits, so it is safe to call from a broadcasting thread; the
+         * transport's own thread finishes the cleanup and logout.
+         */
+        abstract void abort();
+
+        /**
+         * Close the connection and underlying socket.
+         *
+         * @throws IOException if the socket cannot be closed cleanly
+         */
+        @Override
+        public abstract void close() throws IOException;
+    }
 
     /**
      * Simple wrapper around a Socket that provides line-based send/receive.
-     * Closing the Connection closes the underlying socket and streams.
+     * Used by the blocking modes, where one thread reads from each client and
+     * a second, dedicated writer thread drains its outbound queue.
      */
-    private class Connection implements AutoCloseable {
+    private static class SocketConnection extends Connection {
+        /** How long close() lets the writer finish sending queued lines. */
+        private static final long CLOSE_FLUSH_MILLIS = 1_000;
+
         private final Socket socket;
-        private final BufferedWriter bw;
-        private final BufferedReader br;
+        private final InputStream in;
+        private final LineFramer framer;
+        private final WritableByteChannel out;
+        private final Thread writer;
 
         /**
-         * Create a Connection for the given socket, using UTF-8 readers/writers.
+         * Create a Connection for the given socket, reading lines through a
+         * LineFramer and writing pre-encoded frames straight to the socket's
+         * channel.
          *
          * @param socket the socket for a newly accepted client
+         * @param framer cuts the socket's input into lines
+         * @param outbound the queue the writer thread drains
+         * @param writerThreads factory for the writer thread
          * @throws IOException if the socket streams cannot be opened
          */
-        public Connection(Socket socket) throws IOException {
+        public SocketConnection(Socket socket, LineFramer framer, OutboundQueue outbound,
+                                ThreadFactory writerThreads) throws IOException {
+            super(outbound);
             this.socket = socket;
-            this.br = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            this.bw = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            this.in = socket.getInputStream();
+            this.framer = framer;
+            this.out = socket.getChannel() != null
+                    ? socket.getChannel()
+                    : Channels.newChannel(socket.getOutputStream());
+            this.writer = writerThreads.newThread(this::drainOutbound);
+            this.writer.start();
         }
 
         /**
-         * Send a line of text to the client.
-         *
-         * @param msg message line to send (without newline)
-         * @throws IOException if the client connection is broken
+         * Writer loop: send queued frames in order until the queue is closed
+         * and empty, each batch in a single gathering write where the socket
+         * supports it. A failed write closes the socket, which also ends the
+         * reading side.
          */
-        public void sendln(String msg) throws IOException {
-            bw.write(msg);
-            bw.newLine();
-            bw.flush();
+        private void drainOutbound() {
+            ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+            try {
+                int count;
+                while ((count = outbound.takeBatch(batch)) > 0) {
+                    if (out instanceof GatheringByteChannel gathering) {
+                        while (batch[count - 1].hasRemaining()) {
+                            gathering.write(batch, 0, count);
+                        }
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            while (batch[i].hasRemaining()) {
+                                out.write(batch[i]);
+                            }
+                        }
+                    }
+                    lastWriteNanos = System.nanoTime();
+                    Arrays.fill(batch, 0, count, null);
+                }
+            } catch (IOException | InterruptedException e) {
+                abort();
+            }
+        }
+
+        @Override
+        void closeAfterFlush() {
+            // The reading thread sees end of input and closes, which flushes.
+            try { socket.shutdownInput(); } catch (IOException ignored) {}
+        }
+
+        @Override
+        void abort() {
+            outbound.close();
+            outbound.clear();
+            try { socket.close(); } catch (IOException ignored) {}
         }
 
         /**
          * Read a line of text from the client.
          *
          * @return the next line, or null if the client closed the connection
-         * @throws IOException if a network error occurs while reading
+         * @throws IOException if a network error occurs while reading, or the
+         *         line is too long
          */
         public String readLine() throws IOException {
-            return br.readLine();
+            return awaitLine() ? framer.line() : null;
         }
 
         /**
-         * Close the connection and underlying socket.
+         * Wait for the next line, leaving it in the framer undecoded.
          *
-         * @throws IOException if the socket cannot be closed cleanly
+         * @return true if a line arrived, false if the client closed the connection
+         * @throws IOException if a network error occurs while reading, or the
+         *         line is too long
+         */
+        boolean awaitLine() throws IOException {
+            while (!framer.nextLine()) {
+                if (framer.readFrom(in) < 0) {
+                    return false;
+                }
+                lastReadNanos = System.nanoTime();
+            }
+            return true;
+        }
+
+        /**
+         * Stop accepting output, give the writer a moment to send what is
+         * already queued (such as a rejection message), then close the socket.
          */
         @Override
         public void close() throws IOException {
-            try { br.close(); } catch (IOException ignored) {}
-            try { bw.close(); } catch (IOException ignored) {}
+            outbound.close();
+            try {
+                writer.join(CLOSE_FLUSH_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer.interrupt();
+            try { in.close(); } catch (IOException ignored) {}
+            try { out.close(); } catch (IOException ignored) {}
             socket.close();
         }
     }
@@ -113,13 +465,16 @@ public class ChatterboxServer {
      * args[0] = port number (1..65535)
      * args[1] = credentials file path
      *
+     * Any further args are "--name=value" flags; see ChatterboxServerOptions.
+     *
      * @param args command-line arguments
      * @throws IOException only if something unexpected slips past validation
      */
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
-            System.err.println("Usage: java -cp src ChatterboxServer <port> <credentialsFile>");
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp src ChatterboxServer <port> <credentialsFile> [options]");
             System.err.println("Example: java -cp src ChatterboxServer 12345 sample_users.txt");
+            System.err.println(ChatterboxServerOptions.usage());
             System.exit(1);
         }
 
@@ -136,6 +491,16 @@ public class ChatterboxServer {
             return; // unreachable, keeps compiler happy
         }
 
+        ChatterboxServerOptions options;
+        try {
+            options = ChatterboxServerOptions.parse(Arrays.copyOfRange(args, 2, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(ChatterboxServerOptions.usage());
+            System.exit(1);
+            return;
+        }
+
         String filename = args[1];
         Map<String, String> creds;
         try {
@@ -148,7 +513,20 @@ public class ChatterboxServer {
         }
 
         System.out.println("Loaded " + creds.size() + " credential(s). Starting server on port " + port + "...");
-        ChatterboxServer server = new ChatterboxServer(port, creds);
+        ChatterboxServer server;
+        try {
+            server = new ChatterboxServer(port, creds, options);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+        try {
+            server.watchCredentials(Path.of(filename));
+        } catch (IOException e) {
+            server.log.warn("Not watching '" + filename + "' for changes: " + e.getMessage());
+        }
         server.serve();
     }
 
@@ -158,25 +536,14 @@ public class ChatterboxServer {
      * File format:
      * - whitespace-separated tokens
      * - interpreted as (user, pass) pairs
+     * - a pass may be a verifier from ChatterboxPasswords instead of plaintext
      *
      * @param filename path to the credentials file
      * @return a map of username -> password
      * @throws IOException if the file cannot be read or is malformed
      */
-    private static Map<String, String> loadCredentials(String filename) throws IOException {
-        Map<String, String> creds = new HashMap<>();
-        try (Scanner sc = new Scanner(new File(filename), StandardCharsets.UTF_8)) {
-            while (sc.hasNext()) {
-                String user = sc.next();
-                if (!sc.hasNext()) {
-                    throw new IOException(
-                            "Credentials file has an odd number of tokens; missing password for user '" + user + "'");
-                }
-                String pass = sc.next();
-                creds.put(user, pass);
-            }
-        }
-        return creds;
+    static Map<String, String> loadCredentials(String filename) throws IOException {
+        return CredentialFile.load(Path.of(filename));
     }
 
     /**
@@ -184,134 +551,732 @@ public class ChatterboxServer {
      *
      * @param port port to listen on
      * @param user2pass map of username -> password
+     * @throws IOException if the history directory cannot be opened
+     */
+    public ChatterboxServer(int port, Map<String, String> user2pass) throws IOException {
+        this(port, user2pass, new ChatterboxServerOptions());
+    }
+
+    /**
+     * Create a new ChatterboxServer with non-default options.
+     *
+     * @param port port to listen on
+     * @param user2pass map of username -> password
+     * @param options optional settings such as the connection mode
+     * @throws IOException if the history directory cannot be opened
+     * @throws IllegalArgumentException if a password is a malformed verifier
      */
-    public ChatterboxServer(int port, Map<String, String> user2pass) {
+    public ChatterboxServer(int port, Map<String, String> user2pass, ChatterboxServerOptions options)
+            throws IOException {
         this.port = port;
         this.connections = new ConcurrentHashMap<>();
-        this.user2pass = user2pass;
+        this.chatLimits = new ConcurrentHashMap<>();
+
+        this.options = options;
+        this.admissions = new Semaphore(options.getMaxConnections());
+        this.pendingLogins = new Semaphore(options.getMaxPendingLogins());
+        this.log = new ServerLog(options.getLogLevel(), options.getLogBuffer(), options.getLogFile(),
+                options.getLogFileMaxBytes(), options.getLogFileBackups());
+        long hashStarted = System.nanoTime();
+        this.credentials = new CredentialStore(Map.of(), options.getPbkdf2Iterations(),
+                options.getLoginCacheSize(), options.getLoginCacheTtlMillis());
+        int hashed = credentials.replace(user2pass);
+        log.info("Hashed " + hashed + " of " + credentials.size() + " credential(s) in "
+                + (System.nanoTime() - hashStarted) / 1_000_000 + " ms.");
+        this.writerThreads = options.getMode() == ChatterboxServerOptions.Mode.VIRTUAL
+                ? Thread.ofVirtual().name("chatterbox-writer-", 0).factory()
+                : Thread.ofPlatform().daemon().name("chatterbox-writer-", 0).factory();
+        this.authWorkers = Executors.newFixedThreadPool(options.getAuthThreads(),
+                Thread.ofPlatform().daemon().name("chatterbox-auth-", 0).factory());
+        this.queryWorkers = Executors.newFixedThreadPool(options.getQueryThreads(),
+                Thread.ofPlatform().daemon().name("chatterbox-query-", 0).factory());
+        this.history = options.getHistoryDir() == null ? null
+                : new MessageLog(options.getHistoryDir(), options.getHistorySegmentBytes(),
+                        options.getHistoryFsync(), options.getHistoryFsyncIntervalMillis());
+        // Carry on numbering from the persisted history, if there is one.
+        long firstSequence = history == null ? 0 : history.nextSequence();
+        this.bus = new MessageBus(options.getBusSize(), firstSequence, log);
+        this.fanOut = new ShardedFanOut(this, bus, options.getFanOutShards(),
+                new RecentHistory(options.getRetainMessages(), options.getRetainMaxBytes(), firstSequence),
+                options.getReplayMessages(), options.getReplayMaxBytes());
+        if (history != null) {
+            bus.addConsumer("chatterbox-history", this::record);
+            search = new SearchIndex();
+            long started = System.nanoTime();
+            long[] indexed = new long[1];
+            history.forEach(entry -> {
+                search.add(entry.sequence(), entry.room(), entry.text());
+                indexed[0]++;
+            });
+            log.info("Indexed " + indexed[0] + " message(s) from history in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms.");
+            bus.addConsumer("chatterbox-search", search::onMessage);
+        } else {
+            search = null;
+        }
+        this.timers = new TimerWheel("chatterbox-timer", TIMER_TICK_MILLIS, TIMER_BUCKETS, log);
+        this.keepAlive = options.getKeepAliveIntervalMillis() == 0 ? null
+                : new KeepAlive(timers, log, options.getKeepAliveIntervalMillis(),
+                        options.getKeepAliveTimeoutMillis());
+        this.compactor = history == null || options.getHistoryCompactIntervalSeconds() == 0 ? null
+                : new LogCompactor(history, search, log, options.getHistorySegmentBytes(),
+                        options.getHistoryMaxAgeHours() * 3_600_000L, options.getHistoryMaxMb() * 1_048_576L,
+                        options.getHistoryCompressAfterHours() * 3_600_000L,
+                        options.getHistoryCompactRateKb() * 1024L,
+                        options.getHistoryCompactIntervalSeconds() * 1000L);
     }
 
     /**
-     * Accept clients forever and handle each one in the thread pool.
-     * Also starts a heartbeat thread that broadcasts every 10 seconds.
+     * Bus consumer: append a broadcast to the on-disk history.
+     */
+    private void record(MessageBus.Message message, boolean endOfBatch) {
+        if (message.frame != null) { // join and move events are not history
+            try {
+                history.append(message.sequence, message.timeMillis, message.user, message.room, message.frame);
+            } catch (IOException e) {
+                log.error("Could not write message " + message.sequence + " to history: " + e.getMessage());
+            }
+        }
+        if (endOfBatch) {
+            history.endOfBatch();
+        }
+    }
+
+    /**
+     * Reload the credentials from a file whenever it changes.
      *
-     * @throws IOException if the ServerSocket cannot be opened
+     * @param file the credentials file the server was started with
+     * @throws IOException if the file's directory cannot be watched
+     */
+    void watchCredentials(Path file) throws IOException {
+        reloader = new CredentialReloader(file, credentials, log);
+    }
+
+    /**
+     * Stop the bus and flush the history and log; run on JVM shutdown.
+     */
+    private void shutdown() {
+        if (reloader != null) {
+            reloader.close();
+        }
+        if (compactor != null) {
+            compactor.close();
+        }
+        timers.close();
+        authWorkers.shutdownNow();
+        queryWorkers.shutdownNow();
+        bus.close();
+        if (history != null) {
+            history.close();
+        }
+        log.close();
+    }
+
+    /**
+     * Accept clients forever, using the transport selected by the options.
+     *
+     * @throws IOException if the server socket cannot be opened
      */
     public void serve() throws IOException {
-        ExecutorService pool = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+        bus.start();
 
-        // Heartbeat thread (daemon so it won't block JVM shutdown)
-        Thread heartbeat = new Thread(() -> {
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    Thread.sleep(10_000);
-                    sendToAll("SERVER", "heartbeat");
+        try {
+            switch (options.getMode()) {
+                case NIO -> {
+                    try (NioChatEngine engine = new NioChatEngine(this, port, options.getIoThreads())) {
+                        engine.run();
+                    }
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt(); // exit cleanly
+                case VIRTUAL -> serveBlocking(Executors.newVirtualThreadPerTaskExecutor());
+                default -> serveBlocking(Executors.newFixedThreadPool(options.getMaxConnections()));
             }
-        });
-        heartbeat.setDaemon(true);
-        heartbeat.start();
+        } finally {
+            bus.close();
+        }
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server listening on port " + port + "...");
+    /**
+     * Accept clients forever and handle each one on its own executor thread.
+     * Clients over the connection limit are rejected at once rather than
+     * queued behind busy threads.
+     *
+     * @param pool executor that runs one connectClient task per admitted client
+     * @throws IOException if the ServerSocket cannot be opened
+     */
+    private void serveBlocking(ExecutorService pool) throws IOException {
+        // Opened as a channel so accepted sockets expose getChannel() for frame writes.
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            ServerSocket serverSocket = serverChannel.socket();
+            serverSocket.bind(new InetSocketAddress(port), options.getAcceptBacklog());
+            log.info("Server listening on port " + port + " (" + options.getMode().name().toLowerCase()
+                    + ", up to " + getMaxConnections() + " clients)...");
             while (true) {
                 Socket socket = serverSocket.accept();
+                String refusal = admit(socket.getInetAddress());
+                if (refusal != null) {
+                    reject(socket.getOutputStream(), refusal);
+                    socket.close();
+                    continue;
+                }
                 pool.submit(() -> {
                     try {
                         connectClient(socket);
                     } catch (IOException e) {
-                        System.err.println("Client handler failed: " + e.getMessage());
+                        log.error("Client handler failed: " + e.getMessage());
+                    } finally {
+                        releaseAdmission();
                     }
                 });
             }
         } finally {
-            heartbeat.interrupt();
             pool.shutdownNow();
         }
     }
 
     /**
-     * Broadcast a message to all currently connected clients.
+     * @return the configured limit on simultaneously admitted clients
+     */
+    int getMaxConnections() {
+        return options.getMaxConnections();
+    }
+
+    /**
+     * @return how many connections the OS may queue before they are accepted
+     */
+    int getAcceptBacklog() {
+        return options.getAcceptBacklog();
+    }
+
+    /**
+     * Decide whether a newly accepted client may proceed and, if so, reserve
+     * a connection slot and a pending-login slot for it. Accept thread only.
+     *
+     * @param address the client's address
+     * @return null if the client is admitted; otherwise the line to send it
+     *         before closing the connection
+     */
+    String admit(InetAddress address) {
+        if (options.getAcceptRatePerIp() > 0) {
+            if (acceptLimits.size() >= acceptLimitsSweepAt) {
+                acceptLimits.values().removeIf(TokenBucket::isFull);
+                acceptLimitsSweepAt = Math.max(MIN_ACCEPT_LIMITS_SWEEP, acceptLimits.size() * 2);
+            }
+            TokenBucket limit = acceptLimits.computeIfAbsent(address,
+                    a -> new TokenBucket(options.getAcceptRatePerIp(), options.getAcceptBurstPerIp()));
+            if (!limit.tryTake()) {
+                return TOO_MANY_CONNECTIONS;
+            }
+        }
+        if (!admissions.tryAcquire()) {
+            return SERVER_FULL;
+        }
+        if (!pendingLogins.tryAcquire()) {
+            admissions.release();
+            return SERVER_FULL;
+        }
+        return null;
+    }
+
+    /**
+     * Give back the pending-login slot taken by admit, once the client has
+     * sent its login line or gone. Only the first call for a connection
+     * releases anything.
+     *
+     * @param connection the client
+     */
+    void endLoginWait(Connection connection) {
+        if (connection.awaitingLogin.compareAndSet(true, false)) {
+            pendingLogins.release();
+        }
+    }
+
+    /**
+     * Give back the connection slot taken by admit once the client is gone.
+     */
+    void releaseAdmission() {
+        admissions.release();
+    }
+
+    /**
+     * Give back both slots taken by admit for a client that failed before
+     * it had a connection.
+     */
+    void abandonAdmission() {
+        pendingLogins.release();
+        admissions.release();
+    }
+
+    /**
+     * @return an empty outbound queue sized by the options, for a new connection
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(options.getOutboundQueueCapacity(), options.getOutboundMaxBytes(),
+                options.getOutboundMaxLagMillis(), options.getSlowConsumerPolicy(),
+                options.getCoalesceMaxBytes(), options.getCoalesceMaxDelayMillis());
+    }
+
+    /**
+     * @return an empty line framer with the configured line limit, for a new
+     *         connection
+     */
+    LineFramer newLineFramer() {
+        return new LineFramer(INITIAL_LINE_CAPACITY, options.getMaxLineBytes());
+    }
+
+    /**
+     * Tell a client that was not admitted why, without waiting on it.
+     * Failures are ignored: the socket is about to be closed anyway.
+     *
+     * @param out the rejected client's output stream
+     * @param reason the line returned by admit
+     */
+    static void reject(OutputStream out, String reason) {
+        try {
+            out.write((reason + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Broadcast a message to all clients in the lobby.
      *
      * @param user sender username
      * @param message message text
      */
     public void sendToAll(String user, String message) {
-        String formatted = "[" + user + "]: " + message;
-        System.out.println(formatted);
+        sendToRoom(LOBBY, user, message);
+    }
+
+    /**
+     * Broadcast a message to all clients currently in a room. This only
+     * publishes the message on the bus; the fan-out shards deliver it in
+     * parallel. Outside the lobby, each line names its room.
+     *
+     * @param room the room
+     * @param user sender username
+     * @param message message text
+     */
+    void sendToRoom(String room, String user, String message) {
+        String formatted = LOBBY.equals(room)
+                ? "[" + user + "]: " + message
+                : "[" + user + "@" + room + "]: " + message;
+        log.info(formatted);
+
+        // Encode once; every recipient writes from its own view of these bytes.
+        bus.publish(room, user, message, encodeLine(formatted));
+    }
+
+    /**
+     * Act on one line from a logged-in client: run it if it is a command,
+     * otherwise broadcast it to the client's room. A line beyond the user's rate limit is
+     * dropped before it costs anything more.
+     *
+     * @param connection the client that sent the line
+     * @param line the line, without its newline
+     * @throws IOException if a command's reply cannot be sent
+     */
+    void handleLine(Connection connection, String line) throws IOException {
+        TokenBucket limit = connection.chatLimit;
+        if (limit != null && !limit.tryTake()) {
+            connection.throttledLines++;
+            if (!connection.throttled) {
+                connection.throttled = true;
+                connection.sendln("[SERVER]: Slow down: lines beyond " + options.getChatRate()
+                        + " per second are being dropped.");
+            }
+            return;
+        }
+        connection.throttled = false;
+        // A command is the whole first word, so "/searching" is just chat.
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String args = space < 0 ? "" : line.substring(space + 1).trim();
+        switch (command) {
+            case "/history" -> history(connection, args.split("\\s+"));
+            case "/search" -> search(connection, args);
+            case "/join" -> join(connection, args);
+            case "/leave" -> join(connection, LOBBY);
+            default -> sendToRoom(connection.room, connection.user, line);
+        }
+    }
+
+    /**
+     * "/join ROOM": move the client to a room, which exists for as long as
+     * anyone is in it. "/leave" is "/join lobby". A client is in one room at
+     * a time and only hears what is said there after it arrived.
+     *
+     * @param connection the client that asked
+     * @param room the room name
+     * @throws IOException if the reply cannot be sent
+     */
+    private void join(Connection connection, String room) throws IOException {
+        if (!isRoomName(room)) {
+            connection.sendln("Usage: /join <room>, where the name is 1-" + MAX_ROOM_NAME
+                    + " letters, digits, '-' or '_'; /leave to return to the " + LOBBY + ".");
+            return;
+        }
+        if (room.equals(connection.room)) {
+            connection.sendln("You are already in " + room + ".");
+            return;
+        }
+        log.debug("User '" + connection.user + "' moved from " + connection.room + " to " + room + ".");
+        connection.room = room;
+        fanOut.move(connection, room);
+    }
+
+    private static boolean isRoomName(String name) {
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * "/history since TIME [limit N]": send the requesting client, and only
+     * that client, the broadcasts to its room stamped at or after TIME
+     * (epoch milliseconds or an ISO-8601 instant), oldest first, as one
+     * write. The log is read on a query worker.
+     *
+     * @param connection the client that asked
+     * @param args the words after "/history"
+     * @throws IOException if the reply cannot be sent
+     */
+    private void history(Connection connection, String[] args) throws IOException {
+        if (history == null) {
+            connection.sendln("History is not enabled on this server.");
+            return;
+        }
+        long since;
+        int limit = 100;
+        try {
+            if ((args.length != 2 && args.length != 4) || !args[0].equals("since")
+                    || (args.length == 4 && !args[2].equals("limit"))) {
+                throw new IllegalArgumentException();
+            }
+            since = args[1].chars().allMatch(Character::isDigit)
+                    ? Long.parseLong(args[1])
+                    : Instant.parse(args[1]).toEpochMilli();
+            if (args.length == 4) {
+                limit = Integer.parseInt(args[3]);
+                if (limit < 1 || limit > MAX_HISTORY_LIMIT) {
+                    throw new IllegalArgumentException();
+                }
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            connection.sendln("Usage: /history since <epoch-millis|ISO-8601 time> [limit <1-"
+                    + MAX_HISTORY_LIMIT + ">]");
+            return;
+        }
 
-        for (Connection connection : connections.values()) {
+        String room = connection.room;
+        int max = limit;
+        answer(connection, () -> history.since(since, room, max),
+                entries -> "History since " + Instant.ofEpochMilli(since) + ": " + entries.size() + " message(s).");
+    }
+
+    /**
+     * "/search WORDS": send the requesting client the newest broadcasts to
+     * its room that contain every word, oldest first, as one write. The
+     * index and log are read on a query worker.
+     *
+     * @param connection the client that asked
+     * @param query the words after "/search"
+     * @throws IOException if the reply cannot be sent
+     */
+    private void search(Connection connection, String query) throws IOException {
+        if (search == null) {
+            connection.sendln("Search is not enabled on this server.");
+            return;
+        }
+        if (SearchIndex.terms(query).isEmpty()) {
+            connection.sendln("Usage: /search <words>");
+            return;
+        }
+        String room = connection.room;
+        answer(connection, () -> history.read(search.search(query, room, SEARCH_LIMIT)),
+                entries -> "Search for '" + query + "': " + entries.size() + " match(es).");
+    }
+
+    /**
+     * Run a history query on a query worker, then send the client a header
+     * line and the entries found. The reply goes through the client's
+     * outbound queue like any other line, so it may follow broadcasts sent
+     * after the command.
+     *
+     * @param connection the client that asked
+     * @param query reads the entries
+     * @param header the header line for the entries found
+     */
+    private void answer(Connection connection, Callable<List<MessageLog.Entry>> query,
+                        Function<List<MessageLog.Entry>, String> header) {
+        queryWorkers.execute(() -> {
             try {
-                connection.sendln(formatted);
+                List<MessageLog.Entry> entries;
+                try {
+                    entries = query.call();
+                } catch (Exception e) {
+                    log.error("History query for '" + connection.user + "' failed", e);
+                    connection.sendln("History is unavailable right now.");
+                    return;
+                }
+                sendEntries(connection, header.apply(entries), entries);
             } catch (IOException e) {
-                // If a client can't be written to, they likely disconnected.
-                System.err.println("Warning: failed to send message to a client (they may have disconnected).");
+                // The client has gone; there is no one to answer.
             }
+        });
+    }
+
+    /**
+     * Send a header line and then history entries, each stamped with its
+     * time, in a single write.
+     */
+    private static void sendEntries(Connection connection, String header, List<MessageLog.Entry> entries)
+            throws IOException {
+        connection.sendln(header);
+        if (entries.isEmpty()) {
+            return;
         }
+        byte[][] stamps = new byte[entries.size()][];
+        int total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            MessageLog.Entry entry = entries.get(i);
+            stamps[i] = (Instant.ofEpochMilli(entry.timeMillis()) + " ").getBytes(StandardCharsets.US_ASCII);
+            total += stamps[i].length + entry.frame().remaining();
+        }
+        ByteBuffer reply = ByteBuffer.allocate(total);
+        for (int i = 0; i < entries.size(); i++) {
+            reply.put(stamps[i]).put(entries.get(i).frame().duplicate());
+        }
+        connection.send(reply.flip().asReadOnlyBuffer());
     }
 
     /**
-     * Handle a single client: authenticate, then relay/broadcast their messages.
+     * Queue an encoded broadcast on each recipient's connection.
+     *
+     * @param frame read-only encoded line shared by every recipient
+     * @param sequencedFrame the same line with its "#sequence " prefix, for
+     *                       recipients that asked for sequence numbers
+     * @param recipients connections to deliver to
+     */
+    void deliver(ByteBuffer frame, ByteBuffer sequencedFrame, Iterable<Connection> recipients) {
+        for (Connection connection : recipients) {
+            try {
+                connection.send(connection.sequenced ? sequencedFrame : frame);
+            } catch (IOException e) {
+                // If a client can't be written to, they likely disconnected or fell too far behind.
+                log.warn("Warning: failed to send message to a client: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Encode one protocol line, newline included, for sending to clients.
+     *
+     * @param line text of the line (without newline)
+     * @return a read-only buffer that may be shared between connections
+     */
+    static ByteBuffer encodeLine(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Give a client that has just been prompted for credentials a limited
+     * time to send them. If the deadline passes first, the client is told so
+     * and disconnected; login() cancels it.
+     *
+     * @param connection a connection that has not logged in yet
+     */
+    void awaitLogin(Connection connection) {
+        connection.timer = timers.schedule(() -> {
+            try {
+                connection.sendln("Authentication timed out.");
+            } catch (IOException ignored) {
+                // Already closing.
+            }
+            connection.closeAfterFlush();
+        }, options.getAuthTimeoutMillis());
+    }
+
+    /**
+     * Check a client's authentication line and, on success, register the
+     * connection and welcome the user.
      *
      * Authentication:
-     * - Server prompts for a single line: "username password"
-     * - Any failure results in an explanatory message and disconnect.
+     * - The line must be "username password", optionally followed by the
+     *   sequence number of the last broadcast the client saw (-1 if none).
+     *   A client that sends it gets every broadcast prefixed with
+     *   "#sequence ", and on reconnect is sent just the broadcasts it missed.
+     * - Any failure results in an explanatory message; the caller then
+     *   disconnects the client.
+     *
+     * The line is parsed at once, but the password is checked on the auth
+     * workers, since a check that misses the login cache runs the slow hash
+     * and must not hold up an I/O thread. The rest of the login then runs on
+     * the given executor. The caller should not read more from the client
+     * until the returned future completes.
+     *
+     * @param connection the client that sent the line
+     * @param line array holding the line the client sent in reply to the prompt
+     * @param offset where the line starts
+     * @param length length of the line, without its line ending
+     * @param finisher where to finish the login once the password is checked
+     * @return the authenticated username, or null if the client was rejected;
+     *         fails with an UncheckedIOException if a reply cannot be sent
+     */
+    CompletableFuture<String> login(Connection connection, byte[] line, int offset, int length,
+                                    Executor finisher) {
+        connection.cancelTimer();
+        AuthLine auth = new AuthLine();
+        if (!auth.parse(line, offset, length)) {
+            endLoginWait(connection);
+            try {
+                connection.sendln("Authentication failed: expected 'username password [last-sequence]'.");
+                connection.sendln("Closing connection. Please try again.");
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(new UncheckedIOException(e));
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String user = auth.user();
+        byte[] password = auth.password();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return credentials.verify(user, password, 0, password.length);
+            } finally {
+                Arrays.fill(password, (byte) 0);
+            }
+        }, authWorkers).thenApplyAsync(valid -> {
+            endLoginWait(connection);
+            try {
+                return valid ? register(connection, auth, user) : refuseLogin(connection);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, finisher);
+    }
+
+    private static String refuseLogin(Connection connection) throws IOException {
+        connection.sendln("Authentication failed: invalid username or password.");
+        connection.sendln("Closing connection. Please try again.");
+        return null;
+    }
+
+    /** The second half of login, once the password is known to be right. */
+    private String register(Connection connection, AuthLine auth, String user) throws IOException {
+
+        if (connections.putIfAbsent(user, connection) != null) {
+            connection.sendln("Authentication failed: user '" + user + "' is already connected.");
+            connection.sendln("Disconnect your other client and try again.");
+            return null;
+        }
+        connection.user = user;
+        if (options.getChatRate() > 0) {
+            connection.chatLimit = chatLimits.computeIfAbsent(user,
+                    u -> new TokenBucket(options.getChatRate(), options.getChatBurst()));
+        }
+        connection.sequenced = auth.sequenced();
+        connection.resumeAfter = auth.resumeAfter();
+
+        try {
+            connection.sendln("Welcome to the server, " + user + "!");
+            connection.sendln("Be kind and respectful to your classmates.");
+        } catch (IOException e) {
+            connections.remove(user, connection);
+            throw e;
+        }
+        fanOut.add(connection);
+        if (keepAlive != null) {
+            keepAlive.watch(connection);
+        }
+        return user;
+    }
+
+    /**
+     * Forget a logged-in user's connection once it has gone away, and log
+     * what it left behind: output still queued, lines dropped while it lagged
+     * and lines it sent too fast.
+     *
+     * @param user the username returned by login
+     * @param connection the connection that was registered for it
+     */
+    void logout(String user, Connection connection) {
+        connection.cancelTimer();
+        fanOut.remove(connection);
+        connections.remove(user, connection);
+        long dropped = connection.outbound.droppedFrames();
+        long unsent = connection.outbound.queuedBytes();
+        long throttled = connection.throttledLines;
+        log.info("User '" + user + "' disconnected."
+                + (unsent > 0 ? " " + unsent + " byte(s) were still queued for them, the oldest for "
+                        + connection.outbound.oldestAgeMillis() + " ms." : "")
+                + (dropped > 0 ? " " + dropped + " line(s) were dropped while they lagged." : "")
+                + (throttled > 0 ? " " + throttled + " line(s) they sent too fast were dropped." : ""));
+    }
+
+    /**
+     * Handle a single client in blocking mode: authenticate, then relay/broadcast
+     * their messages until they disconnect.
      *
      * @param socket newly accepted socket
      * @throws IOException if connection setup fails
      */
     public void connectClient(Socket socket) throws IOException {
-        Connection connection = new Connection(socket);
+        SocketConnection connection;
+        try {
+            connection = new SocketConnection(socket, newLineFramer(), newOutboundQueue(), writerThreads);
+        } catch (IOException e) {
+            pendingLogins.release();
+            throw e;
+        }
 
         try (connection) {
-            connection.sendln("Please enter your username and password, separated by a space:");
+            connection.sendln(AUTH_PROMPT);
+            awaitLogin(connection);
 
-            String authString = connection.readLine();
-            if (authString == null) {
-                // Client disconnected before sending auth line.
+            if (!connection.awaitLine()) {
+                // Client disconnected, or ran out of time, before sending auth line.
+                connection.cancelTimer();
                 return;
             }
 
-            String[] parts = authString.trim().split("\\s+");
-            if (parts.length != 2) {
-                connection.sendln("Authentication failed: expected 'username password'.");
-                connection.sendln("Closing connection. Please try again.");
-                return;
-            }
-
-            String user = parts[0];
-            String pass = parts[1];
-
-            String expectedPass = user2pass.get(user);
-            if (expectedPass == null || !expectedPass.equals(pass)) {
-                connection.sendln("Authentication failed: invalid username or password.");
-                connection.sendln("Closing connection. Please try again.");
-                return;
+            LineFramer framer = connection.framer;
+            String user;
+            try {
+                // This thread only waits, so the auth worker may as well finish the login.
+                user = login(connection, framer.array(), framer.lineOffset(), framer.lineLength(), Runnable::run)
+                        .join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException io) {
+                    throw io.getCause();
+                }
+                throw e;
             }
-
-            if (connections.putIfAbsent(user, connection) != null) {
-                connection.sendln("Authentication failed: user '" + user + "' is already connected.");
-                connection.sendln("Disconnect your other client and try again.");
+            if (user == null) {
                 return;
             }
 
             try {
-                connection.sendln("Welcome to the server, " + user + "!");
-                connection.sendln("Be kind and respectful to your classmates.");
-
                 String line;
                 while ((line = connection.readLine()) != null) {
-                    sendToAll(user, line);
+                    handleLine(connection, line);
                 }
             } finally {
-                connections.remove(user);
-                System.out.println("User '" + user + "' disconnected.");
+                logout(user, connection);
             }
 
         } catch (IOException e) {
-            System.err.println("Connection error for client: " + e.getMessage());
+            log.warn("Connection error for client: "
+                    + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+        } finally {
+            endLoginWait(connection);
         }
     }
 }
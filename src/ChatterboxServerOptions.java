@@ -0,0 +1,579 @@
+import java.nio.file.Path;
+
+/**
+ * Optional server settings, given on the command line as "--name=value"
+ * flags after the port and credentials file.
+ *
+ * Every setting has a default, so a server started with only the two
+ * required arguments behaves as described in ChatterboxServer. The rate
+ * limits on connections per address and on lines per user are off unless
+ * asked for: a whole class behind one address may reconnect at once, and
+ * what counts as flooding depends on the room.
+ */
+public class ChatterboxServerOptions {
+    /** How accepted clients are serviced. */
+    public enum Mode {
+        /** One pool thread per client, blocking on reads (the original design). */
+        BLOCKING,
+        /** One virtual thread per client, with the same blocking code as BLOCKING. */
+        VIRTUAL,
+        /** Non-blocking channels multiplexed over a few selector threads. */
+        NIO
+    }
+
+    private Mode mode = Mode.NIO;
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /** Zero means "use the default for the mode". */
+    private int maxConnections;
+    private int maxPendingLogins = 1000;
+    private int authThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int queryThreads = 2;
+    private int acceptRatePerIp;
+    private int acceptBurstPerIp = 500;
+    private int acceptBacklog = 1024;
+    private int outboundQueueCapacity = 1024;
+    private int outboundMaxBytes = 1024 * 1024;
+    private int outboundMaxLagMillis = 30_000;
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DISCONNECT;
+    private int coalesceMaxBytes = 64 * 1024;
+    private int coalesceMaxDelayMillis;
+    private int fanOutShards = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int busSize = 8192;
+    private int retainMessages = 10_000;
+    private int retainMaxBytes = 8 * 1024 * 1024;
+    private int replayMessages = 50;
+    private int replayMaxBytes = 64 * 1024;
+    private ServerLog.Level logLevel = ServerLog.Level.INFO;
+    private int logBuffer = 8192;
+    private Path logFile;
+    private int logFileMaxBytes = 10 * 1024 * 1024;
+    private int logFileBackups = 5;
+    private Path historyDir;
+    private int historySegmentBytes = 64 * 1024 * 1024;
+    private MessageLog.FsyncPolicy historyFsync = MessageLog.FsyncPolicy.INTERVAL;
+    private int historyFsyncIntervalMillis = 1000;
+    private int historyCompactIntervalSeconds = 60;
+    private int historyCompactRateKb = 4096;
+    private int historyMaxAgeHours;
+    private int historyMaxMb;
+    private int historyCompressAfterHours;
+    private int authTimeoutMillis = 30_000;
+    private int maxLineBytes = 16 * 1024;
+    private int pbkdf2Iterations = 100_000;
+    private int loginCacheSize = 10_000;
+    private int loginCacheTtlMillis = 10 * 60 * 1000;
+    private int keepAliveIntervalMillis = 10_000;
+    private int keepAliveTimeoutMillis = 30_000;
+    private int chatRate;
+    private int chatBurst = 20;
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @return how many clients may be connected at once; further clients are
+     *         told the server is full and disconnected. Defaults to the old
+     *         pool size in blocking mode and 10,000 otherwise.
+     */
+    public int getMaxConnections() {
+        if (maxConnections > 0) {
+            return maxConnections;
+        }
+        return mode == Mode.BLOCKING ? 100 : 10_000;
+    }
+
+    /**
+     * @return how many admitted clients may be waiting to log in at once;
+     *         further clients are told the server is full and disconnected
+     */
+    public int getMaxPendingLogins() {
+        return maxPendingLogins;
+    }
+
+    /**
+     * @return threads that check passwords; at most this many slow hashes
+     *         run at once
+     */
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    /**
+     * @return threads that answer /history and /search; at most this many
+     *         queries run at once
+     */
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    /**
+     * @return connections per second accepted from one address over time,
+     *         or 0 for no limit
+     */
+    public int getAcceptRatePerIp() {
+        return acceptRatePerIp;
+    }
+
+    /**
+     * @return connections accepted from one address at once after a quiet spell
+     */
+    public int getAcceptBurstPerIp() {
+        return acceptBurstPerIp;
+    }
+
+    /**
+     * @return connections the operating system may queue before the server
+     *         accepts them
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * @return how many lines may wait to be written to one client before the
+     *         slow-consumer policy applies
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * @return how many bytes may wait to be written to one client before the
+     *         slow-consumer policy applies
+     */
+    public int getOutboundMaxBytes() {
+        return outboundMaxBytes;
+    }
+
+    /**
+     * @return how far behind, in milliseconds, a client may fall under the
+     *         disconnect policy, and how long a producer waits under block
+     */
+    public int getOutboundMaxLagMillis() {
+        return outboundMaxLagMillis;
+    }
+
+    /**
+     * @return what to do with output for a client that has fallen behind.
+     *         Under block, one stuck client can pause every broadcast; see
+     *         OutboundQueue.SlowConsumerPolicy.BLOCK
+     */
+    public OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * @return most bytes gathered into one socket write to a client
+     */
+    public int getCoalesceMaxBytes() {
+        return coalesceMaxBytes;
+    }
+
+    /**
+     * @return how long a client's writer may hold back its first pending line
+     *         to gather more into the same write; 0 writes as soon as possible
+     */
+    public int getCoalesceMaxDelayMillis() {
+        return coalesceMaxDelayMillis;
+    }
+
+    /**
+     * @return number of fan-out threads that deliver broadcasts in parallel
+     */
+    public int getFanOutShards() {
+        return fanOutShards;
+    }
+
+    /**
+     * @return slots in the message bus ring; senders wait once the slowest
+     *         consumer is this many broadcasts behind
+     */
+    public int getBusSize() {
+        return busSize;
+    }
+
+    /**
+     * @return how many recent broadcasts are kept in memory for replay and
+     *         for clients that resume after a disconnect
+     */
+    public int getRetainMessages() {
+        return retainMessages;
+    }
+
+    /**
+     * @return most bytes of recent broadcasts kept in memory
+     */
+    public int getRetainMaxBytes() {
+        return retainMaxBytes;
+    }
+
+    /**
+     * @return how many recent broadcasts are replayed to a client when it
+     *         logs in; 0 disables replay
+     */
+    public int getReplayMessages() {
+        return replayMessages;
+    }
+
+    /**
+     * @return most bytes of recent broadcasts replayed to a client when it
+     *         logs in
+     */
+    public int getReplayMaxBytes() {
+        return replayMaxBytes;
+    }
+
+    /**
+     * @return lowest severity written to the console and log file
+     */
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * @return how many log records may wait for the log writer before new
+     *         ones are dropped
+     */
+    public int getLogBuffer() {
+        return logBuffer;
+    }
+
+    /**
+     * @return file that log records are also appended to, or null for console only
+     */
+    public Path getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * @return size at which the log file is rolled over
+     */
+    public int getLogFileMaxBytes() {
+        return logFileMaxBytes;
+    }
+
+    /**
+     * @return how many rolled-over log files to keep
+     */
+    public int getLogFileBackups() {
+        return logFileBackups;
+    }
+
+    /**
+     * @return directory the broadcast history is persisted in, or null to
+     *         keep no history on disk
+     */
+    public Path getHistoryDir() {
+        return historyDir;
+    }
+
+    /**
+     * @return size of each memory-mapped history segment file
+     */
+    public int getHistorySegmentBytes() {
+        return historySegmentBytes;
+    }
+
+    /**
+     * @return when history writes are forced to disk
+     */
+    public MessageLog.FsyncPolicy getHistoryFsync() {
+        return historyFsync;
+    }
+
+    /**
+     * @return period of forced history writes under the interval policy
+     */
+    public int getHistoryFsyncIntervalMillis() {
+        return historyFsyncIntervalMillis;
+    }
+
+    /**
+     * @return seconds between history compaction passes, or 0 to never
+     *         compact, compress or expire history
+     */
+    public int getHistoryCompactIntervalSeconds() {
+        return historyCompactIntervalSeconds;
+    }
+
+    /**
+     * @return most KiB per second written by history compaction
+     */
+    public int getHistoryCompactRateKb() {
+        return historyCompactRateKb;
+    }
+
+    /**
+     * @return age in hours after which history segments are deleted, or 0
+     *         to keep them regardless of age
+     */
+    public int getHistoryMaxAgeHours() {
+        return historyMaxAgeHours;
+    }
+
+    /**
+     * @return size in MiB above which the oldest history segments are
+     *         deleted, or 0 for no limit
+     */
+    public int getHistoryMaxMb() {
+        return historyMaxMb;
+    }
+
+    /**
+     * @return age in hours after which history segments are gzipped, or 0
+     *         to never compress them
+     */
+    public int getHistoryCompressAfterHours() {
+        return historyCompressAfterHours;
+    }
+
+    /**
+     * @return how long a new client has to send its credentials
+     */
+    public int getAuthTimeoutMillis() {
+        return authTimeoutMillis;
+    }
+
+    /**
+     * @return longest line accepted from a client, in bytes
+     */
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    /**
+     * @return PBKDF2 iterations used to hash each password
+     */
+    public int getPbkdf2Iterations() {
+        return pbkdf2Iterations;
+    }
+
+    /**
+     * @return most recent successful logins remembered, skipping the slow
+     *         hash when the same user logs in again with the same password
+     */
+    public int getLoginCacheSize() {
+        return loginCacheSize;
+    }
+
+    /**
+     * @return how long a successful login is remembered
+     */
+    public int getLoginCacheTtlMillis() {
+        return loginCacheTtlMillis;
+    }
+
+    /**
+     * @return idle time after which a client is sent a heartbeat, or 0 to
+     *         send none and never drop unresponsive clients
+     */
+    public int getKeepAliveIntervalMillis() {
+        return keepAliveIntervalMillis;
+    }
+
+    /**
+     * @return how long a client's output may wait without any of it being
+     *         written before the client is dropped
+     */
+    public int getKeepAliveTimeoutMillis() {
+        return keepAliveTimeoutMillis;
+    }
+
+    /**
+     * @return lines per second a user may send over time, or 0 for no limit
+     */
+    public int getChatRate() {
+        return chatRate;
+    }
+
+    /**
+     * @return lines a user may send at once after a quiet spell
+     */
+    public int getChatBurst() {
+        return chatBurst;
+    }
+
+    /**
+     * Parse "--name=value" flags into options. Flags that are not given keep
+     * their defaults.
+     *
+     * @param flags the command-line arguments following the required ones
+     * @return the parsed options
+     * @throws IllegalArgumentException on an unknown flag or a bad value
+     */
+    public static ChatterboxServerOptions parse(String[] flags) throws IllegalArgumentException {
+        ChatterboxServerOptions options = new ChatterboxServerOptions();
+        for (String flag : flags) {
+            int eq = flag.indexOf('=');
+            if (!flag.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected an option of the form --name=value, got '" + flag + "'");
+            }
+            String name = flag.substring(2, eq);
+            String value = flag.substring(eq + 1);
+            switch (name) {
+                case "mode" -> options.mode = parseEnum(Mode.class, name, value);
+                case "io-threads" -> options.ioThreads = parseInt(name, value, 1, 1024);
+                case "max-connections" -> options.maxConnections = parseInt(name, value, 1, 1_000_000);
+                case "max-pending-logins" -> options.maxPendingLogins = parseInt(name, value, 1, 1_000_000);
+                case "auth-threads" -> options.authThreads = parseInt(name, value, 1, 1024);
+                case "query-threads" -> options.queryThreads = parseInt(name, value, 1, 1024);
+                case "accept-rate-per-ip" -> options.acceptRatePerIp = parseInt(name, value, 0, 1_000_000);
+                case "accept-burst-per-ip" -> options.acceptBurstPerIp = parseInt(name, value, 1, 1_000_000);
+                case "accept-backlog" -> options.acceptBacklog = parseInt(name, value, 1, 1_000_000);
+                case "outbound-queue" -> options.outboundQueueCapacity = parseInt(name, value, 1, 1_000_000);
+                case "outbound-max-bytes" -> options.outboundMaxBytes = parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "outbound-max-lag-ms" -> options.outboundMaxLagMillis = parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "slow-consumer" -> options.slowConsumerPolicy =
+                        parseEnum(OutboundQueue.SlowConsumerPolicy.class, name, value);
+                case "coalesce-max-bytes" -> options.coalesceMaxBytes = parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "coalesce-max-delay-ms" -> options.coalesceMaxDelayMillis = parseInt(name, value, 0, 10_000);
+                case "fanout-shards" -> options.fanOutShards = parseInt(name, value, 1, 1024);
+                case "bus-size" -> options.busSize = parseInt(name, value, 2, 1 << 24);
+                case "retain-messages" -> options.retainMessages = parseInt(name, value, 0, 10_000_000);
+                case "retain-max-bytes" -> options.retainMaxBytes = parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "replay-messages" -> options.replayMessages = parseInt(name, value, 0, 1_000_000);
+                case "replay-max-bytes" -> options.replayMaxBytes = parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "log-level" -> options.logLevel = parseEnum(ServerLog.Level.class, name, value);
+                case "log-buffer" -> options.logBuffer = parseInt(name, value, 2, 1 << 24);
+                case "log-file" -> options.logFile = Path.of(value);
+                case "log-file-max-bytes" -> options.logFileMaxBytes = parseInt(name, value, 1024, Integer.MAX_VALUE);
+                case "log-file-backups" -> options.logFileBackups = parseInt(name, value, 0, 100);
+                case "history-dir" -> options.historyDir = Path.of(value);
+                case "history-segment-bytes" -> options.historySegmentBytes =
+                        parseInt(name, value, 64 * 1024, Integer.MAX_VALUE);
+                case "history-fsync" -> options.historyFsync = parseEnum(MessageLog.FsyncPolicy.class, name, value);
+                case "history-fsync-interval-ms" -> options.historyFsyncIntervalMillis =
+                        parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "history-compact-interval-s" -> options.historyCompactIntervalSeconds =
+                        parseInt(name, value, 0, 86_400);
+                case "history-compact-rate-kb" -> options.historyCompactRateKb =
+                        parseInt(name, value, 1, Integer.MAX_VALUE / 1024);
+                case "history-max-age-hours" -> options.historyMaxAgeHours = parseInt(name, value, 0, 1_000_000);
+                case "history-max-mb" -> options.historyMaxMb = parseInt(name, value, 0, Integer.MAX_VALUE);
+                case "history-compress-after-hours" -> options.historyCompressAfterHours =
+                        parseInt(name, value, 0, 1_000_000);
+                case "auth-timeout-ms" -> options.authTimeoutMillis = parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "max-line-bytes" -> options.maxLineBytes = parseInt(name, value, 64, 1 << 24);
+                case "pbkdf2-iterations" -> options.pbkdf2Iterations = parseInt(name, value, 1000, 10_000_000);
+                case "login-cache-size" -> options.loginCacheSize = parseInt(name, value, 0, 10_000_000);
+                case "login-cache-ttl-ms" -> options.loginCacheTtlMillis = parseInt(name, value, 0, Integer.MAX_VALUE);
+                case "keepalive-interval-ms" -> options.keepAliveIntervalMillis =
+                        parseInt(name, value, 0, Integer.MAX_VALUE);
+                case "keepalive-timeout-ms" -> options.keepAliveTimeoutMillis =
+                        parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "chat-rate" -> options.chatRate = parseInt(name, value, 0, 1_000_000);
+                case "chat-burst" -> options.chatBurst = parseInt(name, value, 1, 1_000_000);
+                default -> throw new IllegalArgumentException("Unknown option '--" + name + "'");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return a short description of every flag, for the usage message
+     */
+    public static String usage() {
+        return String.join(System.lineSeparator(),
+                "Options:",
+                "  --mode=nio|virtual|blocking  how clients are serviced (default nio)",
+                "  --io-threads=N               selector threads in nio mode (default: one per core)",
+                "  --max-connections=N          clients admitted at once (default 100 blocking, 10000 otherwise)",
+                "  --max-pending-logins=N       clients admitted but not yet logged in (default 1000)",
+                "  --auth-threads=N             threads checking passwords (default: one per core)",
+                "  --query-threads=N            threads answering /history and /search (default 2)",
+                "  --accept-rate-per-ip=N       connections per second from one address (default 0 = no limit)",
+                "  --accept-burst-per-ip=N      connections at once from one address (default 500)",
+                "  --accept-backlog=N           connections queued by the OS before accept (default 1024)",
+                "  --outbound-queue=N           lines buffered per client (default 1024)",
+                "  --outbound-max-bytes=N       bytes buffered per client (default 1048576)",
+                "  --outbound-max-lag-ms=N      oldest buffered line age allowed (default 30000)",
+                "  --slow-consumer=POLICY       drop-oldest|drop-newest|disconnect|block (default disconnect)",
+                "  --coalesce-max-bytes=N       bytes gathered into one socket write (default 65536)",
+                "  --coalesce-max-delay-ms=N    wait for more lines before writing (default 0)",
+                "  --fanout-shards=N            parallel broadcast workers (default: one per core)",
+                "  --bus-size=N                 broadcasts buffered on the message bus (default 8192)",
+                "  --retain-messages=N          recent broadcasts kept for replay and resume (default 10000)",
+                "  --retain-max-bytes=N         most bytes of broadcasts kept (default 8388608)",
+                "  --replay-messages=N          recent broadcasts replayed on login (default 50, 0 for none)",
+                "  --replay-max-bytes=N         most bytes replayed on login (default 65536)",
+                "  --log-level=LEVEL            debug|info|warn|error (default info)",
+                "  --log-buffer=N               log records queued before dropping (default 8192)",
+                "  --log-file=PATH              also append the log to PATH (default: console only)",
+                "  --log-file-max-bytes=N       roll the log file over at this size (default 10485760)",
+                "  --log-file-backups=N         rolled-over log files to keep (default 5)",
+                "  --history-dir=PATH           persist every broadcast under PATH (default: no history)",
+                "  --history-segment-bytes=N    size of each history segment file (default 67108864)",
+                "  --history-fsync=POLICY       never|interval|always (default interval)",
+                "  --history-fsync-interval-ms=N  period for --history-fsync=interval (default 1000)",
+                "  --history-compact-interval-s=N  seconds between history compactions, 0 = off (default 60)",
+                "  --history-compact-rate-kb=N  most KiB/s written by compaction (default 4096)",
+                "  --history-max-age-hours=N    delete history older than N hours, 0 = keep (default 0)",
+                "  --history-max-mb=N           delete oldest history above N MiB, 0 = no limit (default 0)",
+                "  --history-compress-after-hours=N  gzip history older than N hours, 0 = never (default 0)",
+                "  --auth-timeout-ms=N          time a new client has to log in (default 30000)",
+                "  --max-line-bytes=N           longest line accepted from a client (default 16384)",
+                "  --pbkdf2-iterations=N        password hash iterations (default 100000)",
+                "  --login-cache-size=N         recent logins remembered, 0 = none (default 10000)",
+                "  --login-cache-ttl-ms=N       how long a login is remembered (default 600000)",
+                "  --keepalive-interval-ms=N    heartbeat clients idle this long, 0 = off (default 10000)",
+                "  --keepalive-timeout-ms=N     drop clients whose output is stuck this long (default 30000)",
+                "  --chat-rate=N                lines per second per user; more are dropped (default 0 = no limit)",
+                "  --chat-burst=N               lines a user may send at once after a pause (default 20)");
+    }
+
+    private static int parseInt(String name, String value, int min, int max) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be an integer, got '" + value + "'");
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException("--" + name + " must be between " + min + " and " + max + ", got " + parsed);
+        }
+        return parsed;
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().replace('_', '-').equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException("Unknown value '" + value + "' for --" + name);
+    }
+
+    @Override
+    public String toString() {
+        return "ChatterboxServerOptions [mode=" + mode + ", ioThreads=" + ioThreads
+                + ", maxConnections=" + getMaxConnections() + ", maxPendingLogins=" + maxPendingLogins
+                + ", authThreads=" + authThreads + ", queryThreads=" + queryThreads
+                + ", acceptRatePerIp=" + acceptRatePerIp + ", acceptBurstPerIp=" + acceptBurstPerIp
+                + ", acceptBacklog=" + acceptBacklog
+                + ", outboundQueueCapacity=" + outboundQueueCapacity + ", outboundMaxBytes=" + outboundMaxBytes
+                + ", outboundMaxLagMillis=" + outboundMaxLagMillis + ", slowConsumerPolicy=" + slowConsumerPolicy
+                + ", coalesceMaxBytes=" + coalesceMaxBytes + ", coalesceMaxDelayMillis=" + coalesceMaxDelayMillis
+                + ", fanOutShards=" + fanOutShards + ", busSize=" + busSize
+                + ", retainMessages=" + retainMessages + ", retainMaxBytes=" + retainMaxBytes
+                + ", replayMessages=" + replayMessages + ", replayMaxBytes=" + replayMaxBytes
+                + ", logLevel=" + logLevel + ", logBuffer=" + logBuffer + ", logFile=" + logFile
+                + ", logFileMaxBytes=" + logFileMaxBytes + ", logFileBackups=" + logFileBackups
+                + ", historyDir=" + historyDir + ", historySegmentBytes=" + historySegmentBytes
+                + ", historyFsync=" + historyFsync + ", historyFsyncIntervalMillis=" + historyFsyncIntervalMillis
+                + ", historyCompactIntervalSeconds=" + historyCompactIntervalSeconds
+                + ", historyCompactRateKb=" + historyCompactRateKb + ", historyMaxAgeHours=" + historyMaxAgeHours
+                + ", historyMaxMb=" + historyMaxMb + ", historyCompressAfterHours=" + historyCompressAfterHours
+                + ", authTimeoutMillis=" + authTimeoutMillis + ", maxLineBytes=" + maxLineBytes
+                + ", pbkdf2Iterations=" + pbkdf2Iterations + ", loginCacheSize=" + loginCacheSize
+                + ", loginCacheTtlMillis=" + loginCacheTtlMillis
+                + ", keepAliveIntervalMillis=" + keepAliveIntervalMillis
+                + ", keepAliveTimeoutMillis=" + keepAliveTimeoutMillis
+                + ", chatRate=" + chatRate
+                + ", chatBurst=" + chatBurst + "]";
+    }
+}
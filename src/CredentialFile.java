@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Reader for a credentials file: whitespace-separated tokens, taken as
+ * (user, password) pairs.
+ *
+ * The file is read whole into one array and scanned byte by byte, with no
+ * regex and no intermediate character buffer, in two passes. The first only
+ * counts tokens, so the table is sized once for the number of users and
+ * never rehashed; the second decodes each token from the array as UTF-8 and
+ * stores the pair in an open-addressing table of parallel key and value
+ * arrays. Any byte up to and including ' ' separates tokens, as in
+ * AuthLine. A user listed twice keeps their last password.
+ *
+ * The file is not memory-mapped: it is reloaded while editors and
+ * ChatterboxPasswords rewrite or replace it, and a mapping would fail
+ * mid-scan if the file shrank, or (on Windows) block the replacement.
+ */
+final class CredentialFile {
+    private CredentialFile() {
+    }
+
+    /**
+     * Load username/password pairs from a file.
+     *
+     * @param file the credentials file
+     * @return a map of username -> password
+     * @throws IOException if the file cannot be read or has an odd number of tokens
+     */
+    static Map<String, String> load(Path file) throws IOException {
+        if (Files.size(file) > Integer.MAX_VALUE - 8) {
+            throw new IOException("Credentials file is larger than 2 GB");
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        int end = bytes.length;
+
+        int tokens = 0;
+        boolean inToken = false;
+        for (int i = 0; i < end; i++) {
+            boolean separator = (bytes[i] & 0xFF) <= ' ';
+            if (!separator && !inToken) {
+                tokens++;
+            }
+            inToken = !separator;
+        }
+
+        Table creds = new Table(tokens / 2);
+        String user = null;
+        int i = 0;
+        while (true) {
+            while (i < end && (bytes[i] & 0xFF) <= ' ') {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            int start = i;
+            while (i < end && (bytes[i] & 0xFF) > ' ') {
+                i++;
+            }
+            int length = i - start;
+            String token = new String(bytes, start, length, StandardCharsets.UTF_8);
+            if (user == null) {
+                user = token;
+            } else {
+                creds.put(user, token);
+                user = null;
+            }
+        }
+        if (user != null) {
+            throw new IOException(
+                    "Credentials file has an odd number of tokens; missing password for user '" + user + "'");
+        }
+        return creds;
+    }
+
+    /**
+     * A fixed-capacity map from usernames to passwords, probed linearly. It
+     * is kept at most half full, so probe runs stay short.
+     */
+    private static final class Table extends AbstractMap<String, String> {
+        private final String[] keys;
+        private final String[] values;
+        private final int mask;
+        private int size;
+
+        /** @param expected most entries the table will hold */
+        Table(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1;
+            this.keys = new String[capacity];
+            this.values = new String[capacity];
+            this.mask = capacity - 1;
+        }
+
+        /** @return the slot holding key, or the empty slot where it belongs */
+        private int slot(Object key) {
+            int h = key.hashCode();
+            int i = (h ^ (h >>> 16)) & mask;
+            while (keys[i] != null && !keys[i].equals(key)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            int i = slot(key);
+            String old = values[i];
+            if (keys[i] == null) {
+                if (size == keys.length / 2) {
+                    throw new IllegalStateException("table is full");
+                }
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+            return old;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key == null ? null : values[slot(key)];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key != null && keys[slot(key)] != null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        private int next = advance(0);
+
+                        private int advance(int from) {
+                            while (from < keys.length && keys[from] == null) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < keys.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (next == keys.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, String> entry = new SimpleImmutableEntry<>(keys[next], values[next]);
+                            next = advance(next + 1);
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the credentials file whenever it changes, without a restart.
+ *
+ * A WatchService watches the file's directory (files themselves cannot be
+ * watched, and editors often replace a file rather than rewrite it). When
+ * the file is created or modified, the watcher waits for the writes to
+ * settle, parses the new file and hashes any new or changed passwords on
+ * its own thread, and swaps the result into the CredentialStore. Logins are
+ * never held up: they keep using the old credentials until the swap.
+ *
+ * A file that cannot be read or parsed, or holds a malformed verifier, is
+ * reported and ignored; the old credentials stay in force. Users already
+ * logged in stay connected even if they have been removed from the file.
+ */
+class CredentialReloader implements AutoCloseable {
+    /** Quiet time after the last change before the file is read. */
+    private static final long SETTLE_MILLIS = 250;
+
+    private final Path file;
+    private final CredentialStore credentials;
+    private final ServerLog log;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    /**
+     * Start watching.
+     *
+     * @param file the credentials file
+     * @param credentials the store to load changes into
+     * @param log where to report reloads
+     * @throws IOException if the file's directory cannot be watched
+     */
+    CredentialReloader(Path file, CredentialStore credentials, ServerLog log) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.credentials = credentials;
+        this.log = log;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = Thread.ofPlatform().daemon().name("chatterbox-credentials").unstarted(this::run);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = pollChanged(key);
+                // Let a burst of writes (or a write and a rename) finish first.
+                while (true) {
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    changed |= pollChanged(key);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed.
+        }
+    }
+
+    /** @return true if any of the key's events concern the credentials file */
+    private boolean pollChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        long started = System.nanoTime();
+        Map<String, String> user2pass;
+        int changed;
+        try {
+            user2pass = ChatterboxServer.loadCredentials(file.toString());
+            changed = credentials.replace(user2pass);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Credentials file " + file + " not reloaded: " + e.getMessage());
+            return;
+        }
+        log.info("Reloaded " + user2pass.size() + " credential(s), " + changed + " new or changed, from "
+                + file + " in " + (System.nanoTime() - started) / 1_000_000 + " ms.");
+    }
+
+    /**
+     * Stop watching.
+     */
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException ignored) {
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,280 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Users' credentials, held as salted PBKDF2 verifiers rather than
+ * passwords.
+ *
+ * Each password is hashed once, when the store is built, with its own
+ * random salt; the plaintext is not kept. That costs one slow hash per user
+ * at startup, so the credentials file may instead hold a user's verifier,
+ * already hashed (see {@link #encode} and ChatterboxPasswords):
+ *
+ *     pbkdf2-sha256$ITERATIONS$SALT$HASH
+ *
+ * with the salt and hash in Base64. Such an entry is only decoded, and is
+ * checked with its own iteration count. Checking a login re-runs the slow
+ * hash, which is the point, so a store also remembers recent successful
+ * logins: a bounded, least-recently-used cache of (user, digest of the
+ * password they gave), each entry good for a fixed time. A class
+ * reconnecting at once after a network blip then costs one cheap digest per
+ * client instead of a full key derivation. Failed logins are never cached.
+ *
+ * The verifiers can be replaced wholesale while the server runs. The new
+ * set is built into a fresh immutable map by the caller's thread and
+ * swapped in with one volatile write, so logins never wait on a lock and
+ * see either the old set or the new one, never a mix. Each verifier also
+ * keeps the same fast digest of its password a remembered login holds, so
+ * a replacement can tell which passwords are unchanged: those users keep
+ * their verifier, salt and remembered logins, and only new or changed
+ * passwords pay for the slow hash. A user whose password changed gets a
+ * new salt, so a remembered login for the old password no longer matches.
+ *
+ * Every comparison of secret bytes takes the same time whatever they hold,
+ * and an unknown user's password is hashed against a dummy verifier, so
+ * the time a failed login takes does not tell whether the user exists.
+ */
+class CredentialStore {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    /** Marks a password entry that is already a verifier. */
+    private static final String PREFIX = "pbkdf2-sha256$";
+
+    /**
+     * A user's salt, the slow hash of their password with it, how many
+     * iterations that took, and the fast digest of their plaintext password
+     * that tells a replacement whether it changed. A verifier read from the
+     * file has an empty digest: decoding it again is as cheap as comparing.
+     */
+    private record Verifier(byte[] salt, byte[] hash, int iterations, byte[] digest) {
+    }
+
+    /** A remembered login: a fast digest of the password given, and when it expires. */
+    private record Verified(byte[] digest, long expiresNanos) {
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final int iterations;
+    private final long cacheTtlNanos;
+    private final Map<String, Verified> cache;
+    /** Checked against for unknown users, so they cost as much as known ones. */
+    private final Verifier dummy;
+    /** Immutable; replaced, never changed. */
+    private volatile Map<String, Verifier> verifiers;
+
+    /**
+     * Hash a set of passwords, in parallel.
+     *
+     * @param user2pass map of username -> plaintext password or verifier
+     * @param iterations PBKDF2 iterations per hash
+     * @param cacheSize most logins remembered; 0 to remember none
+     * @param cacheTtlMillis how long a login is remembered
+     */
+    CredentialStore(Map<String, String> user2pass, int iterations, int cacheSize, long cacheTtlMillis) {
+        if (iterations < 1 || cacheSize < 0 || cacheTtlMillis < 0) {
+            throw new IllegalArgumentException("iterations must be positive and cache limits non-negative");
+        }
+        this.iterations = iterations;
+        this.cacheTtlNanos = cacheTtlMillis * 1_000_000;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.verifiers = hash(user2pass, Map.of(), new LongAdder());
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        this.dummy = new Verifier(salt, new byte[HASH_BITS / 8], iterations, new byte[0]);
+    }
+
+    /**
+     * Replace every user's credentials with a new set, built on the calling
+     * thread. Users whose password is unchanged keep their verifier; new and
+     * changed passwords are hashed in parallel. Logins carry on against the
+     * old set meanwhile.
+     *
+     * @param user2pass map of username -> plaintext password or verifier
+     * @return how many plaintext passwords were new or changed, and so hashed
+     * @throws IllegalArgumentException if a verifier is malformed; the old
+     *         set then stays in force
+     */
+    int replace(Map<String, String> user2pass) {
+        LongAdder hashed = new LongAdder();
+        verifiers = hash(user2pass, verifiers, hashed);
+        return hashed.intValue();
+    }
+
+    /**
+     * @param previous verifiers to keep for passwords that match them
+     * @param hashed counts the passwords that did not, and were hashed
+     */
+    private Map<String, Verifier> hash(Map<String, String> user2pass, Map<String, Verifier> previous,
+            LongAdder hashed) {
+        return user2pass.entrySet().parallelStream().collect(Collectors.toUnmodifiableMap(
+                Map.Entry::getKey, entry -> {
+                    if (isEncoded(entry.getValue())) {
+                        return decode(entry.getKey(), entry.getValue());
+                    }
+                    byte[] bytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                    try {
+                        Verifier old = previous.get(entry.getKey());
+                        if (old != null && MessageDigest.isEqual(old.digest(),
+                                digest(old.salt(), bytes, 0, bytes.length))) {
+                            return old;
+                        }
+                        byte[] salt = new byte[SALT_BYTES];
+                        synchronized (random) {
+                            random.nextBytes(salt);
+                        }
+                        char[] password = entry.getValue().toCharArray();
+                        Verifier verifier = new Verifier(salt, derive(password, salt, iterations), iterations,
+                                digest(salt, bytes, 0, bytes.length));
+                        Arrays.fill(password, '\0');
+                        hashed.increment();
+                        return verifier;
+                    } finally {
+                        Arrays.fill(bytes, (byte) 0);
+                    }
+                }));
+    }
+
+    /** Parse a verifier entry. */
+    private static Verifier decode(String user, String entry) {
+        int first = entry.indexOf('$', PREFIX.length());
+        int second = first < 0 ? -1 : entry.indexOf('$', first + 1);
+        try {
+            if (second < 0 || entry.indexOf('$', second + 1) >= 0) {
+                throw new IllegalArgumentException("expected " + PREFIX + "ITERATIONS$SALT$HASH");
+            }
+            int iterations;
+            try {
+                iterations = Integer.parseInt(entry, PREFIX.length(), first, 10);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("iteration count is not a number");
+            }
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] salt = base64.decode(entry.substring(first + 1, second));
+            byte[] hash = base64.decode(entry.substring(second + 1));
+            if (iterations < 1 || salt.length == 0 || hash.length != HASH_BITS / 8) {
+                throw new IllegalArgumentException("bad iteration count, salt or hash length");
+            }
+            return new Verifier(salt, hash, iterations, new byte[0]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed verifier for user '" + user + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Hash a password into a verifier entry for a credentials file, with a
+     * new random salt.
+     *
+     * @param password the plaintext password
+     * @param iterations PBKDF2 iterations
+     * @return the entry, a single token
+     */
+    static String encode(String password, int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be positive");
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        char[] chars = password.toCharArray();
+        byte[] hash = derive(chars, salt, iterations);
+        Arrays.fill(chars, '\0');
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+
+    /**
+     * @param entry a credentials file password entry
+     * @return true if the entry is a verifier rather than a plaintext password
+     */
+    static boolean isEncoded(String entry) {
+        return entry.startsWith(PREFIX);
+    }
+
+    /**
+     * @return number of users in the store
+     */
+    int size() {
+        return verifiers.size();
+    }
+
+    /**
+     * Check a password given as UTF-8 bytes.
+     *
+     * @param user the username
+     * @param bytes array holding the password
+     * @param offset where the password starts
+     * @param length length of the password in bytes
+     * @return true if the user exists and the password is theirs
+     */
+    boolean verify(String user, byte[] bytes, int offset, int length) {
+        Verifier verifier = verifiers.get(user);
+        boolean known = verifier != null;
+        if (!known) {
+            verifier = dummy;
+        }
+        byte[] digest = digest(verifier.salt(), bytes, offset, length);
+        long now = System.nanoTime();
+        synchronized (cache) {
+            Verified remembered = cache.get(user);
+            if (remembered != null && now - remembered.expiresNanos() < 0
+                    && MessageDigest.isEqual(remembered.digest(), digest)) {
+                return true;
+            }
+        }
+
+        CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes, offset, length));
+        char[] password = Arrays.copyOf(chars.array(), chars.limit());
+        Arrays.fill(chars.array(), '\0');
+        boolean valid = MessageDigest.isEqual(verifier.hash(),
+                derive(password, verifier.salt(), verifier.iterations())) && known;
+        Arrays.fill(password, '\0');
+        if (valid) {
+            synchronized (cache) {
+                cache.put(user, new Verified(digest, now + cacheTtlNanos));
+            }
+        }
+        return valid;
+    }
+
+    /** The slow hash. */
+    private static byte[] derive(char[] password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /** The fast digest a remembered login is checked against. */
+    private static byte[] digest(byte[] salt, byte[] bytes, int offset, int length) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(salt);
+            sha.update(bytes, offset, length);
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
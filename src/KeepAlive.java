@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps quiet connections alive and drops dead ones.
+ *
+ * Each logged-in connection has one keepalive check pending on the server's
+ * timer wheel, due when the connection will have been idle for the
+ * interval. If by then it has neither sent nor received anything, it is
+ * sent a heartbeat line, to it alone; otherwise the check is just moved to
+ * the new due time. Busy connections are never pinged, and the cost is one
+ * timer per connection per interval, not a walk over every connection.
+ *
+ * A connection whose output has been waiting for longer than the timeout,
+ * without the client once catching up, is taken to be dead: its peer has
+ * vanished or stopped reading. A trickle of bytes getting through does not
+ * count as catching up. It is aborted at once, which logs it out and
+ * removes it from the server's connections, instead of lingering until
+ * some later write fails.
+ */
+class KeepAlive {
+    /** The line sent to an idle client. */
+    static final ByteBuffer HEARTBEAT = ChatterboxServer.encodeLine("[SERVER]: heartbeat");
+
+    private final TimerWheel timers;
+    private final ServerLog log;
+    private final long intervalNanos;
+    private final long timeoutMillis;
+
+    /**
+     * @param timers the wheel the checks are scheduled on
+     * @param log where to report dropped connections
+     * @param intervalMillis idle time after which a connection is pinged
+     * @param timeoutMillis how long a connection may go with output pending
+     *                      and never caught up before it is dropped
+     */
+    KeepAlive(TimerWheel timers, ServerLog log, long intervalMillis, long timeoutMillis) {
+        this.timers = timers;
+        this.log = log;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Start looking after a newly logged-in connection. Its check is kept in
+     * connection.timer, so logout can cancel it.
+     *
+     * @param connection the connection
+     */
+    void watch(ChatterboxServer.Connection connection) {
+        connection.timer = timers.schedule(() -> check(connection), TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+    }
+
+    /** Wheel thread: ping the connection if idle, abort it if dead, and schedule the next check. */
+    private void check(ChatterboxServer.Connection connection) {
+        if (connection.departed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long pendingMillis = connection.outbound.pendingMillis();
+        if (pendingMillis > timeoutMillis
+                && now - connection.lastWriteNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+            log.warn("Dropping unresponsive client '" + connection.user + "' ("
+                    + connection.outbound.describeLag() + ").");
+            connection.abort();
+            return;
+        }
+        long idleNanos = now - Math.max(connection.lastReadNanos, connection.lastWriteNanos);
+        if (idleNanos >= intervalNanos && connection.outbound.size() == 0) {
+            try {
+                connection.send(HEARTBEAT);
+            } catch (IOException e) {
+                return; // the connection is closing; its own thread logs it out
+            }
+            idleNanos = 0;
+        }
+        long nextMillis = TimeUnit.NANOSECONDS.toMillis(intervalNanos - idleNanos);
+        if (pendingMillis > 0) {
+            long untilTimeout = timeoutMillis - pendingMillis + 1;
+            nextMillis = Math.min(nextMillis, untilTimeout > 0 ? untilTimeout : timeoutMillis / 4 + 1);
+        }
+        connection.timer = timers.schedule(() -> check(connection), Math.max(1, nextMillis));
+    }
+}
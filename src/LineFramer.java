@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Cuts a client's incoming bytes into lines, in one reusable buffer per
+ * connection.
+ *
+ * Bytes are appended as they arrive and scanned for '\n' eight at a time,
+ * by testing a whole long for a zero byte after XOR with a word of
+ * newlines, so a long line costs a few operations per word rather than a
+ * branch per byte. Each line is then available in place, as a range of the
+ * buffer, and only turned into a String if the caller asks for one. A
+ * trailing '\r' is dropped.
+ *
+ * A line may be at most maxLineBytes long. A client that sends more than
+ * that without a newline is refused with an IOException, rather than the
+ * buffer growing without bound.
+ */
+class LineFramer {
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final int maxLineBytes;
+    private byte[] buffer;
+    /** Start of the bytes not yet returned as lines. */
+    private int start;
+    /** End of the bytes received. */
+    private int end;
+    /** Bytes before this are known not to be newlines. */
+    private int scanned;
+    private int lineOffset;
+    private int lineLength;
+
+    /**
+     * @param initialCapacity starting size of the buffer
+     * @param maxLineBytes longest line accepted, not counting its newline
+     */
+    LineFramer(int initialCapacity, int maxLineBytes) {
+        if (initialCapacity < 1 || maxLineBytes < 1) {
+            throw new IllegalArgumentException("initialCapacity and maxLineBytes must be positive");
+        }
+        this.buffer = new byte[initialCapacity];
+        this.maxLineBytes = maxLineBytes;
+    }
+
+    /**
+     * Add received bytes.
+     *
+     * @param bytes the bytes; its position is moved to its limit
+     */
+    void append(ByteBuffer bytes) {
+        makeRoom(bytes.remaining());
+        int n = bytes.remaining();
+        bytes.get(buffer, end, n);
+        end += n;
+    }
+
+    /**
+     * Read whatever the stream has, up to the free space in the buffer
+     * (which is made if there is none).
+     *
+     * @param in the client's input
+     * @return bytes read, or -1 at end of stream
+     * @throws IOException if the read fails
+     */
+    int readFrom(InputStream in) throws IOException {
+        if (end == buffer.length) {
+            makeRoom(Math.min(buffer.length, maxLineBytes + 2));
+        }
+        int n = in.read(buffer, end, buffer.length - end);
+        if (n > 0) {
+            end += n;
+        }
+        return n;
+    }
+
+    /** Make space for count more bytes at the end, compacting before growing. */
+    private void makeRoom(int count) {
+        if (end + count <= buffer.length) {
+            return;
+        }
+        int pending = end - start;
+        if (pending + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, pending + count));
+        }
+        System.arraycopy(buffer, start, buffer, 0, pending);
+        scanned -= start;
+        start = 0;
+        end = pending;
+    }
+
+    /**
+     * Move to the next complete line, if one has arrived. The line stays
+     * valid until the next call to any method that adds bytes.
+     *
+     * @return true if there is a line; false if more bytes are needed
+     * @throws IOException if the incomplete line is already over the limit
+     */
+    boolean nextLine() throws IOException {
+        int newline = indexOfNewline(Math.max(start, scanned), end);
+        if (newline < 0) {
+            scanned = end;
+            int pending = end - start;
+            // A line at the limit may still be waiting for the '\n' after its '\r'.
+            if (pending > maxLineBytes && !(pending == maxLineBytes + 1 && buffer[end - 1] == '\r')) {
+                throw new IOException("line longer than " + maxLineBytes + " bytes");
+            }
+            return false;
+        }
+        int length = newline - start;
+        if (length > 0 && buffer[newline - 1] == '\r') {
+            length--;
+        }
+        if (length > maxLineBytes) {
+            throw new IOException("line longer than " + maxLineBytes + " bytes");
+        }
+        lineOffset = start;
+        lineLength = length;
+        start = newline + 1;
+        scanned = start;
+        return true;
+    }
+
+    /** @return index of the first '\n' in [from, to), or -1 */
+    private int indexOfNewline(int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = (long) LONGS.get(buffer, i) ^ NEWLINES;
+            long zeros = (x - ONES) & ~x & HIGHS;
+            if (zeros != 0) {
+                return i + (Long.numberOfTrailingZeros(zeros) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the buffer holding the current line */
+    byte[] array() {
+        return buffer;
+    }
+
+    /** @return where the current line starts in array() */
+    int lineOffset() {
+        return lineOffset;
+    }
+
+    /** @return length of the current line in bytes, without its line ending */
+    int lineLength() {
+        return lineLength;
+    }
+
+    /** @return the current line, decoded as UTF-8 */
+    String line() {
+        return new String(buffer, lineOffset, lineLength, StandardCharsets.UTF_8);
+    }
+}
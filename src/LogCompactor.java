@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Background upkeep of a MessageLog: retention, compaction and compression
+ * of finished segments. The active segment is never touched, so appends
+ * carry on throughout.
+ *
+ * Each pass, on its own thread:
+ * - deletes the oldest segments while they are older than the maximum age
+ *   or the log is over its maximum size, and drops their messages from the
+ *   search index;
+ * - rewrites each finished segment once, trimmed to the bytes its records
+ *   actually take;
+ * - gzips segments older than the compression age, if one is set.
+ *
+ * A rewritten file replaces the original with an atomic rename, and readers
+ * that already hold the old mapping keep reading it. All the writing goes
+ * through a byte-rate limit so that compaction never competes hard with the
+ * live log for the disk.
+ *
+ * A segment's age is its file's modification time, which compaction sets to
+ * the time of the segment's last message.
+ */
+class LogCompactor implements AutoCloseable {
+    /** Bytes written between rate-limit checks. */
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private final MessageLog log;
+    private final SearchIndex search;
+    private final ServerLog serverLog;
+    private final int segmentBytes;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+    private final long compressAfterMillis;
+    private final long bytesPerSecond;
+    private final ScheduledExecutorService timer;
+
+    private long nextWriteNanos;
+
+    /**
+     * Start running passes periodically.
+     *
+     * @param log the log to look after
+     * @param search the index over the log, pruned along with it
+     * @param serverLog where to report what each pass did
+     * @param segmentBytes the log's segment size; smaller files have already
+     *                     been compacted
+     * @param maxAgeMillis delete segments older than this; 0 for no limit
+     * @param maxBytes delete the oldest segments while the log is bigger than
+     *                 this; 0 for no limit
+     * @param compressAfterMillis gzip segments older than this; 0 for never
+     * @param bytesPerSecond most bytes written per second
+     * @param intervalMillis time between passes
+     */
+    LogCompactor(MessageLog log, SearchIndex search, ServerLog serverLog, int segmentBytes, long maxAgeMillis,
+                 long maxBytes, long compressAfterMillis, long bytesPerSecond, long intervalMillis) {
+        this.log = log;
+        this.search = search;
+        this.serverLog = serverLog;
+        this.segmentBytes = segmentBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+        this.compressAfterMillis = compressAfterMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("chatterbox-history-compactor").factory());
+        timer.scheduleWithFixedDelay(this::pass, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One round of retention, compaction and compression. Failures are
+     * reported and retried on the next pass.
+     */
+    void pass() {
+        try {
+            retain();
+            for (MessageLog.SegmentFile segment : log.finishedSegments()) {
+                if (!segment.compressed() && Files.size(segment.path()) == segmentBytes) {
+                    compact(segment);
+                }
+            }
+            if (compressAfterMillis > 0) {
+                long cutoff = System.currentTimeMillis() - compressAfterMillis;
+                for (MessageLog.SegmentFile segment : log.finishedSegments()) {
+                    if (!segment.compressed() && lastModifiedMillis(segment) < cutoff) {
+                        compress(segment);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            serverLog.warn("History compaction failed: " + e.getMessage());
+        }
+    }
+
+    /** Delete the oldest finished segments while they break the age or size limit. */
+    private void retain() throws IOException {
+        List<MessageLog.SegmentFile> segments = log.finishedSegments();
+        long total = 0;
+        for (MessageLog.SegmentFile segment : segments) {
+            total += Files.size(segment.path());
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        for (MessageLog.SegmentFile segment : segments) {
+            boolean tooOld = maxAgeMillis > 0 && lastModifiedMillis(segment) < cutoff;
+            boolean tooBig = maxBytes > 0 && total > maxBytes;
+            if (!tooOld && !tooBig) {
+                break;
+            }
+            long size = Files.size(segment.path());
+            log.replaceFinished(segment, null);
+            Files.deleteIfExists(segment.path());
+            Files.deleteIfExists(MessageLog.Segment.indexFor(segment.path()));
+            total -= size;
+            search.removeBefore(log.firstSequence());
+            serverLog.info("History retention removed " + segment.path().getFileName() + ".");
+        }
+    }
+
+    /** Rewrite one segment with only the bytes its records take. */
+    private void compact(MessageLog.SegmentFile segment) throws IOException {
+        Path path = segment.path();
+        Path temporary = path.resolveSibling(path.getFileName() + ".compacting");
+        MessageLog.Segment source = MessageLog.Segment.openReadOnly(path);
+
+        List<MessageLog.Entry> kept = new ArrayList<>();
+        source.scanFrom(0, kept::add);
+
+        long lastTime = 0;
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+            for (MessageLog.Entry entry : kept) {
+                int recordBytes = MessageLog.recordBytes(entry.room(), entry.frame());
+                if (chunk.remaining() < recordBytes) {
+                    writeThrottled(out, chunk.flip());
+                    chunk.clear();
+                    if (chunk.remaining() < recordBytes) {
+                        chunk = ByteBuffer.allocate(recordBytes);
+                    }
+                }
+                chunk.putInt(recordBytes - 4);
+                MessageLog.putRecord(chunk, entry.sequence(), entry.timeMillis(), entry.userLength(), entry.room(),
+                        entry.frame());
+                lastTime = Math.max(lastTime, entry.timeMillis());
+            }
+            writeThrottled(out, chunk.flip());
+            out.write(ByteBuffer.allocate(4)); // end marker
+            out.force(true);
+        }
+
+        // Without an index a segment is scanned, which is slow but correct; a
+        // stale index would not be, so it goes first.
+        Files.deleteIfExists(MessageLog.Segment.indexFor(path));
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        MessageLog.Segment.reindex(path);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(lastTime > 0 ? lastTime : System.currentTimeMillis()));
+        log.replaceFinished(segment, new MessageLog.SegmentFile(path, segment.baseSequence(),
+                MessageLog.firstTimeMillis(path)));
+        serverLog.debug("History compaction rewrote " + path.getFileName() + " to " + Files.size(path)
+                + " bytes.");
+    }
+
+    /** Replace a segment and its index with a gzipped copy. */
+    private void compress(MessageLog.SegmentFile segment) throws IOException {
+        Path path = segment.path();
+        Path compressed = path.resolveSibling(path.getFileName().toString().replace(
+                MessageLog.SUFFIX, MessageLog.COMPRESSED_SUFFIX));
+        Path temporary = compressed.resolveSibling(compressed.getFileName() + ".compacting");
+        FileTime modified = Files.getLastModifiedTime(path);
+
+        ByteBuffer contents = MessageLog.Segment.openReadOnly(path).buffer.duplicate().clear();
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary))) {
+            byte[] chunk = new byte[CHUNK_BYTES];
+            while (contents.hasRemaining()) {
+                int n = Math.min(chunk.length, contents.remaining());
+                contents.get(chunk, 0, n);
+                throttle(n);
+                out.write(chunk, 0, n);
+            }
+        }
+        Files.move(temporary, compressed, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(compressed, modified);
+        log.replaceFinished(segment, new MessageLog.SegmentFile(compressed, segment.baseSequence(),
+                segment.firstTimeMillis()));
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(MessageLog.Segment.indexFor(path));
+        serverLog.debug("History compaction compressed " + path.getFileName() + ".");
+    }
+
+    private static long lastModifiedMillis(MessageLog.SegmentFile segment) throws IOException {
+        return Files.getLastModifiedTime(segment.path()).toMillis();
+    }
+
+    private void writeThrottled(FileChannel out, ByteBuffer bytes) throws IOException {
+        throttle(bytes.remaining());
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    /** Sleep as needed to keep writes under bytesPerSecond. */
+    private void throttle(int bytes) {
+        long now = System.nanoTime();
+        nextWriteNanos = Math.max(nextWriteNanos, now) + bytes * 1_000_000_000L / bytesPerSecond;
+        long wait = nextWriteNanos - now;
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop running passes, waiting briefly for one in progress to give up.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
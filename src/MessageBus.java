@@ -0,0 +1,356 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The server's internal broadcast bus: a pre-allocated ring of message slots
+ * in the style of the LMAX Disruptor.
+ *
+ * Any client reader may publish. A publisher claims the next sequence number
+ * with a single atomic increment, fills the pre-allocated slot for it, and
+ * marks the slot available; that sequence is the message's position in one
+ * total order seen by every consumer. Each consumer runs on its own thread,
+ * follows the sequence with its own cursor, and processes every available
+ * message in order, in batches when it has fallen behind. Publishers wait
+ * only when the slowest consumer is a whole ring behind.
+ *
+ * The bus adds no allocation per message: slots are created once and
+ * reused. (The encoded frame a message carries is still allocated once per
+ * message, because recipients' outbound queues hold it after its slot is
+ * reused.)
+ *
+ * A consumer may be registered downstream of others, in which case it never
+ * gets ahead of them: everything it sees has already been processed by its
+ * upstream consumers.
+ *
+ * Besides broadcasts, the bus carries join and move events, which mark the
+ * exact point in the order at which a client starts receiving broadcasts,
+ * or starts receiving another room's.
+ *
+ * Consumers are registered before start() and never change afterwards.
+ */
+class MessageBus implements AutoCloseable {
+    /** Contents of one ring slot; fields are overwritten when the slot is reused. */
+    static final class Message {
+        /** Position of this message in the total broadcast order. */
+        long sequence;
+        /** Wall-clock time the message was published. */
+        long timeMillis;
+        /** Room the message was sent to; for a move event, the room moved to. */
+        String room;
+        /** Sender username. */
+        String user;
+        /** Message text as sent, without the "[user]: " prefix. */
+        String text;
+        /** Read-only encoded line shared by every recipient. */
+        ByteBuffer frame;
+        /**
+         * The same line prefixed with "#sequence ", for clients that track
+         * their position; filled in by the recent-history consumer.
+         */
+        ByteBuffer sequencedFrame;
+        /**
+         * For a join event, the connection that joins at this point in the
+         * order; null otherwise. Join events have no room, user, text or
+         * frame.
+         */
+        ChatterboxServer.Connection joining;
+        /**
+         * For a move event, the connection that moves to the room at this
+         * point in the order; null otherwise. Move events have no user, text
+         * or frame.
+         */
+        ChatterboxServer.Connection moving;
+    }
+
+    /** Processes messages on a consumer thread, in sequence order. */
+    interface Handler {
+        /**
+         * @param message the message; only valid for the duration of the call
+         * @param endOfBatch true for the last message currently available,
+         *                   a good point to flush any buffered work
+         */
+        void onMessage(Message message, boolean endOfBatch);
+    }
+
+    /** Spins a consumer makes before it blocks waiting for a publisher. */
+    private static final int SPIN_TRIES = 200;
+
+    private final int mask;
+    private final int indexShift;
+    private final Message[] slots;
+
+    /** Per slot: the ring lap of the sequence last published there. */
+    private final AtomicIntegerArray publishedLaps;
+
+    /** Sequence number of the first message published on this bus. */
+    private final long firstSequence;
+
+    /** Highest sequence claimed by any publisher. */
+    private final AtomicLong claimed;
+
+    /** Lowest consumer cursor seen recently; saves rescanning every consumer. */
+    private volatile long gatingCache;
+
+    private final List<Stage> consumers = new ArrayList<>();
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition messageAvailable = waitLock.newCondition();
+    private final AtomicLong waiters = new AtomicLong();
+
+    private volatile boolean running;
+
+    private final ServerLog log;
+
+    /**
+     * @param size number of slots; rounded up to a power of two
+     * @param firstSequence sequence number of the first message, so that
+     *                      numbering can carry on from a persisted history
+     * @param log where to report consumers that fail on a message
+     */
+    MessageBus(int size, long firstSequence, ServerLog log) {
+        this.log = log;
+        this.firstSequence = firstSequence;
+        this.claimed = new AtomicLong(firstSequence - 1);
+        this.gatingCache = firstSequence - 1;
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.mask = capacity - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(capacity);
+        this.slots = new Message[capacity];
+        this.publishedLaps = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Message();
+            publishedLaps.set(i, -1);
+        }
+    }
+
+    /**
+     * Register a consumer. Must be called before start().
+     *
+     * @param name thread name for the consumer
+     * @param handler called for every message, in order
+     * @param upstream consumers that must have processed a message before
+     *                 this one sees it
+     * @return the new consumer, for use as another consumer's upstream
+     */
+    Stage addConsumer(String name, Handler handler, Stage... upstream) {
+        if (running) {
+            throw new IllegalStateException("consumers must be added before the bus starts");
+        }
+        Stage consumer = new Stage(name, handler, upstream);
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    /**
+     * Start every registered consumer thread.
+     */
+    void start() {
+        running = true;
+        for (Stage consumer : consumers) {
+            consumer.thread.start();
+        }
+    }
+
+    /**
+     * Publish a message to every consumer.
+     *
+     * @param room room the message was sent to
+     * @param user sender username
+     * @param text message text
+     * @param frame read-only encoded line for recipients
+     * @return the message's sequence number
+     */
+    long publish(String room, String user, String text, ByteBuffer frame) {
+        return publish(room, user, text, frame, null, null);
+    }
+
+    /**
+     * Publish a join event: broadcasts before it are history to the joining
+     * connection, and broadcasts after it are delivered live.
+     *
+     * @param connection the connection that is joining
+     * @return the event's sequence number
+     */
+    long publishJoin(ChatterboxServer.Connection connection) {
+        return publish(null, null, null, null, connection, null);
+    }
+
+    /**
+     * Publish a move event: broadcasts before it to the connection's old
+     * room are delivered to it, and broadcasts after it to the new room.
+     *
+     * @param connection the connection that is moving
+     * @param room the room it moves to
+     * @return the event's sequence number
+     */
+    long publishMove(ChatterboxServer.Connection connection, String room) {
+        return publish(room, null, null, null, null, connection);
+    }
+
+    private long publish(String room, String user, String text, ByteBuffer frame,
+                         ChatterboxServer.Connection joining, ChatterboxServer.Connection moving) {
+        long sequence = claimed.incrementAndGet();
+        awaitCapacity(sequence);
+
+        Message message = slots[(int) sequence & mask];
+        message.sequence = sequence;
+        message.timeMillis = System.currentTimeMillis();
+        message.room = room;
+        message.user = user;
+        message.text = text;
+        message.frame = frame;
+        message.sequencedFrame = null;
+        message.joining = joining;
+        message.moving = moving;
+        publishedLaps.set((int) sequence & mask, (int) (sequence >>> indexShift));
+
+        signalWaiters();
+        return sequence;
+    }
+
+    private void signalWaiters() {
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                messageAvailable.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /** Wait until the slot for sequence is no longer needed by any consumer. */
+    private void awaitCapacity(long sequence) {
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint <= gatingCache) {
+            return;
+        }
+        long gating;
+        while (wrapPoint > (gating = minimumConsumerSequence(sequence - 1))) {
+            LockSupport.parkNanos(1_000);
+        }
+        gatingCache = gating;
+    }
+
+    private long minimumConsumerSequence(long ceiling) {
+        long minimum = ceiling;
+        for (Stage consumer : consumers) {
+            minimum = Math.min(minimum, consumer.cursor.get());
+        }
+        return minimum;
+    }
+
+    private boolean isPublished(long sequence) {
+        return publishedLaps.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+    }
+
+    /**
+     * @return the highest sequence claimed so far, or one less than the
+     *         first sequence before the first publish
+     */
+    long cursor() {
+        return claimed.get();
+    }
+
+    /**
+     * Stop the consumer threads. Messages not yet consumed are abandoned.
+     */
+    @Override
+    public void close() {
+        running = false;
+        waitLock.lock();
+        try {
+            messageAvailable.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+        for (Stage consumer : consumers) {
+            consumer.thread.interrupt();
+        }
+    }
+
+    /**
+     * One consumer thread and its cursor (the last sequence it has finished),
+     * plus the upstream consumers it must stay behind.
+     */
+    final class Stage {
+        private final AtomicLong cursor = new AtomicLong(firstSequence - 1);
+        private final Handler handler;
+        private final Stage[] upstream;
+        private final Thread thread;
+
+        private Stage(String name, Handler handler, Stage[] upstream) {
+            this.handler = handler;
+            this.upstream = upstream.clone();
+            this.thread = Thread.ofPlatform().daemon().name(name).unstarted(this::run);
+        }
+
+        private void run() {
+            long next = firstSequence;
+            while (running) {
+                if (!awaitAvailable(next)) {
+                    return;
+                }
+                // Everything contiguous that is already available forms one batch.
+                long last = next;
+                long highest = upstream.length == 0 ? claimed.get() : upstreamCursor();
+                while (last < highest && isPublished(last + 1)) {
+                    last++;
+                }
+                for (long sequence = next; sequence <= last; sequence++) {
+                    try {
+                        handler.onMessage(slots[(int) sequence & mask], sequence == last);
+                    } catch (RuntimeException e) {
+                        // One bad message must not stop delivery of the rest.
+                        log.error(thread.getName() + " failed on message " + sequence, e);
+                    }
+                }
+                cursor.set(last);
+                next = last + 1;
+                signalWaiters(); // downstream consumers may be waiting on this cursor
+            }
+        }
+
+        private long upstreamCursor() {
+            long minimum = Long.MAX_VALUE;
+            for (Stage stage : upstream) {
+                minimum = Math.min(minimum, stage.cursor.get());
+            }
+            return minimum;
+        }
+
+        private boolean isAvailable(long sequence) {
+            return upstream.length == 0 ? isPublished(sequence) : upstreamCursor() >= sequence;
+        }
+
+        /** Spin briefly, then block until sequence is available or the bus stops. */
+        private boolean awaitAvailable(long sequence) {
+            for (int i = 0; i < SPIN_TRIES; i++) {
+                if (isAvailable(sequence)) {
+                    return true;
+                }
+                Thread.onSpinWait();
+            }
+            waitLock.lock();
+            waiters.incrementAndGet();
+            try {
+                while (!isAvailable(sequence)) {
+                    if (!running) {
+                        return false;
+                    }
+                    messageAvailable.awaitUninterruptibly();
+                }
+                return true;
+            } finally {
+                waiters.decrementAndGet();
+                waitLock.unlock();
+            }
+        }
+    }
+}
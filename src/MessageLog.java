@@ -0,0 +1,744 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Append-only, on-disk history of every broadcast.
+ *
+ * The log is a directory of fixed-size segment files, each named after the
+ * sequence number of its first message and memory-mapped while it is being
+ * written. Appending a message is a bounds check and a few puts into the
+ * mapping, so persistence stays off the broadcast path's critical cost; the
+ * operating system writes dirty pages back in the background. When a
+ * message does not fit, the segment is finished and a new one is started.
+ *
+ * How often mapped pages are forced to disk is configurable: never (leave it
+ * to the OS), on a fixed interval, or after every batch of messages handed
+ * over by the bus.
+ *
+ * Record layout, all integers big-endian:
+ *   int   length of the rest of the record
+ *   long  sequence
+ *   long  timestamp, epoch milliseconds
+ *   short length of the sender's name in the frame, in bytes
+ *   byte  length of the room's name, 0 for the lobby
+ *   ...   the room's name, ASCII
+ *   ...   the encoded frame exactly as sent: "[user]: text\n" in the
+ *         lobby, "[user@room]: text\n" in any other room
+ * A zero length marks the end of the written part of a segment.
+ *
+ * Each segment has a sparse index beside it (".idx"), with one entry about
+ * every INDEX_INTERVAL_BYTES of log:
+ *   long  highest timestamp of any record up to and including this one
+ *   long  sequence of the record
+ *   int   offset of the record in the segment
+ * The timestamps in the index never decrease, so a time lookup is a binary
+ * search over segments, then over one segment's index, then a short scan.
+ * The index is derived data: it is rebuilt from the log when missing.
+ *
+ * Finished segments may later be rewritten smaller by a LogCompactor, gzipped
+ * (".log.gz", read back whole and scanned without an index) or deleted by
+ * retention; the active segment is never touched.
+ *
+ * Appends come from a single thread (the bus consumer); reads may come from
+ * any thread at the same time.
+ */
+class MessageLog implements AutoCloseable {
+    /** When mapped pages are forced to disk. */
+    enum FsyncPolicy {
+        /** Leave write-back entirely to the operating system. */
+        NEVER,
+        /** Force the active segment every fsync interval. */
+        INTERVAL,
+        /** Force after every batch of appends. */
+        ALWAYS
+    }
+
+    /** A broadcast read back from the log. */
+    record Entry(long sequence, long timeMillis, int userLength, String room, ByteBuffer frame) {
+        /**
+         * @return the message text, decoded from the frame "[user]: text\n"
+         *         or "[user@room]: text\n"
+         */
+        String text() {
+            ByteBuffer text = frame.duplicate();
+            int at = text.position() + 1 + userLength; // past "[user"
+            if (text.get(at) == '@') {
+                while (text.get(at) != ']') { // room names never hold ']'
+                    at++;
+                }
+            }
+            text.position(at + 3).limit(text.limit() - 1); // past "]: ", before "\n"
+            return StandardCharsets.UTF_8.decode(text).toString();
+        }
+    }
+
+    /** Bytes before the room's name in every record, including the length field. */
+    static final int HEADER_BYTES = 4 + 8 + 8 + 2 + 1;
+
+    /** Log bytes between consecutive index entries. */
+    static final int INDEX_INTERVAL_BYTES = 4096;
+
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 4;
+    static final String SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    static final String COMPRESSED_SUFFIX = ".log.gz";
+
+    /** A segment that is no longer written to. */
+    record SegmentFile(Path path, long baseSequence, long firstTimeMillis) {
+        boolean compressed() {
+            return path.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+        }
+    }
+
+    /** The finished segments and the active one, swapped as a unit on roll-over. */
+    private record View(List<SegmentFile> finished, Segment active) {
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final ScheduledExecutorService fsyncTimer;
+
+    private volatile View view;
+    /** Serializes changes to the view by the appender and the compactor. */
+    private final Object viewLock = new Object();
+    private long nextSequence;
+
+    /**
+     * Open (or create) a log directory and recover the position to append at.
+     *
+     * @param directory directory holding the segment files
+     * @param segmentBytes size of each segment file
+     * @param fsyncPolicy when to force written pages to disk
+     * @param fsyncIntervalMillis period for the INTERVAL policy
+     * @throws IOException if the directory or its last segment cannot be opened
+     */
+    MessageLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory);
+
+        List<Path> segments = segmentFiles(directory);
+        Segment active;
+        List<SegmentFile> finished = new ArrayList<>();
+        if (segments.isEmpty()) {
+            active = Segment.create(directory, 0, segmentBytes);
+            nextSequence = 0;
+        } else {
+            for (Path path : segments.subList(0, segments.size() - 1)) {
+                finished.add(new SegmentFile(path, Segment.baseSequenceOf(path), firstTimeMillis(path)));
+            }
+            active = Segment.open(segments.get(segments.size() - 1));
+            nextSequence = active.lastSequence >= 0 ? active.lastSequence + 1 : active.baseSequence;
+        }
+        view = new View(List.copyOf(finished), active);
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            fsyncTimer = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().daemon().name("chatterbox-history-fsync").factory());
+            fsyncTimer.scheduleAtFixedRate(() -> view.active().force(),
+                    fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            fsyncTimer = null;
+        }
+    }
+
+    /**
+     * @param directory a log directory
+     * @return its segment files, plain or compressed, oldest first
+     * @throws IOException if the directory cannot be listed
+     */
+    static List<Path> segmentFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)
+                            || p.getFileName().toString().endsWith(COMPRESSED_SUFFIX))
+                    .sorted(Comparator.comparingLong(Segment::baseSequenceOf)).toList();
+        }
+    }
+
+    /** Timestamp of the first record in a segment file, or Long.MAX_VALUE if it is empty. */
+    static long firstTimeMillis(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if (path.getFileName().toString().endsWith(COMPRESSED_SUFFIX)) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+                header.put(in.readNBytes(HEADER_BYTES));
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.read(header, 0);
+            }
+        }
+        return header.position() >= HEADER_BYTES && header.getInt(0) > 0 ? header.getLong(12) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the segments no longer being written, oldest first
+     */
+    List<SegmentFile> finishedSegments() {
+        return view.finished();
+    }
+
+    /**
+     * @return the sequence the oldest segment starts at; nothing older is
+     *         left in the log
+     */
+    long firstSequence() {
+        View current = view;
+        return current.finished().isEmpty() ? current.active().baseSequence
+                : current.finished().get(0).baseSequence();
+    }
+
+    /**
+     * Swap a finished segment for its rewritten form, or drop it from the
+     * log. Readers that already hold the old segment keep reading it.
+     *
+     * @param old a segment returned by finishedSegments()
+     * @param replacement the segment to list in its place, or null to remove it
+     */
+    void replaceFinished(SegmentFile old, SegmentFile replacement) {
+        synchronized (viewLock) {
+            List<SegmentFile> files = new ArrayList<>(view.finished());
+            int at = files.indexOf(old);
+            if (at < 0) {
+                return;
+            }
+            if (replacement == null) {
+                files.remove(at);
+            } else {
+                files.set(at, replacement);
+            }
+            view = new View(List.copyOf(files), view.active());
+        }
+    }
+
+    /**
+     * @return the sequence number the next appended message should carry,
+     *         one past the last message already in the log
+     */
+    long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Append one broadcast. Sequences must be increasing.
+     *
+     * @param sequence the message's bus sequence
+     * @param timeMillis when it was published
+     * @param user sender username
+     * @param room room it was sent to
+     * @param frame the encoded line as sent to clients
+     * @throws IOException if a new segment is needed and cannot be created
+     */
+    void append(long sequence, long timeMillis, String user, String room, ByteBuffer frame) throws IOException {
+        int recordBytes = recordBytes(room, frame);
+        if (recordBytes + 4 > segmentBytes) {
+            throw new IOException("message of " + frame.remaining() + " bytes does not fit in a "
+                    + segmentBytes + "-byte segment");
+        }
+        Segment active = view.active();
+        if (active.buffer.remaining() < recordBytes + 4) { // leave room for the end marker
+            active = roll(sequence);
+        }
+        ByteBuffer buffer = active.buffer;
+        int start = buffer.position();
+        buffer.position(start + 4);
+        putRecord(buffer, sequence, timeMillis, utf8Length(user), room, frame);
+        // Write the length last so a reader never sees a half-written record.
+        buffer.putInt(start, recordBytes - 4);
+        active.indexRecord(sequence, timeMillis, start);
+        active.lastSequence = sequence;
+        active.committed = buffer.position();
+        nextSequence = sequence + 1;
+    }
+
+    /**
+     * @return bytes a record takes, including its length field
+     */
+    static int recordBytes(String room, ByteBuffer frame) {
+        return HEADER_BYTES + (ChatterboxServer.LOBBY.equals(room) ? 0 : room.length()) + frame.remaining();
+    }
+
+    /**
+     * Put a record, apart from its leading length field, at the buffer's
+     * position.
+     */
+    static void putRecord(ByteBuffer buffer, long sequence, long timeMillis, int userLength, String room,
+                          ByteBuffer frame) {
+        buffer.putLong(sequence);
+        buffer.putLong(timeMillis);
+        buffer.putShort((short) userLength);
+        if (ChatterboxServer.LOBBY.equals(room)) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) room.length());
+            buffer.put(room.getBytes(StandardCharsets.US_ASCII));
+        }
+        buffer.put(frame.duplicate());
+    }
+
+    /**
+     * Called by the bus at the end of each batch of appends.
+     */
+    void endOfBatch() {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            view.active().force();
+        }
+    }
+
+    private Segment roll(long sequence) throws IOException {
+        View current = view;
+        Segment finished = current.active();
+        Segment next = Segment.create(directory, sequence, segmentBytes);
+        synchronized (viewLock) {
+            List<SegmentFile> files = new ArrayList<>(view.finished());
+            files.add(new SegmentFile(finished.path, finished.baseSequence, finished.firstTimeMillis));
+            view = new View(List.copyOf(files), next);
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            finished.force();
+        }
+        finished.close();
+        return next;
+    }
+
+    /**
+     * Read back broadcasts to one room published at or after a given time,
+     * oldest first.
+     *
+     * @param sinceMillis earliest timestamp wanted, epoch milliseconds
+     * @param room the room whose broadcasts are wanted
+     * @param limit most entries returned
+     * @return up to limit entries, in sequence order
+     * @throws IOException if a segment cannot be read
+     */
+    List<Entry> since(long sinceMillis, String room, int limit) throws IOException {
+        View current = view;
+        List<SegmentFile> finished = current.finished();
+        int segments = finished.size() + 1; // the active segment is last
+
+        // Last segment whose first record is before the wanted time.
+        int lo = 0;
+        int hi = segments - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            long first = mid < finished.size() ? finished.get(mid).firstTimeMillis() : current.active().firstTimeMillis;
+            if (first < sinceMillis) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        byte[] roomName = ChatterboxServer.LOBBY.equals(room) ? new byte[0]
+                : room.getBytes(StandardCharsets.US_ASCII);
+        List<Entry> entries = new ArrayList<>();
+        for (int i = lo; i < segments && entries.size() < limit; i++) {
+            Segment segment = i < finished.size() ? Segment.openReadOnly(finished.get(i).path()) : current.active();
+            segment.scanSince(sinceMillis, roomName, limit, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Read back broadcasts by sequence number. Sequences that are not in the
+     * log are skipped.
+     *
+     * @param sequences sequence numbers, in increasing order
+     * @return the entries found, in the same order
+     * @throws IOException if a segment cannot be read
+     */
+    List<Entry> read(long[] sequences) throws IOException {
+        View current = view;
+        List<SegmentFile> finished = current.finished();
+        List<Entry> entries = new ArrayList<>();
+        int segmentIndex = -1;
+        Segment segment = null;
+        for (long sequence : sequences) {
+            // Last segment starting at or before the sequence.
+            int lo = 0;
+            int hi = finished.size();
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                long base = mid < finished.size() ? finished.get(mid).baseSequence() : current.active().baseSequence;
+                if (base <= sequence) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (lo != segmentIndex) {
+                segmentIndex = lo;
+                segment = lo < finished.size() ? Segment.openReadOnly(finished.get(lo).path()) : current.active();
+            }
+            Entry entry = segment.find(sequence);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Visit every broadcast in the log, oldest first.
+     *
+     * @param visitor called for each entry
+     * @throws IOException if a segment cannot be read
+     */
+    void forEach(Consumer<Entry> visitor) throws IOException {
+        View current = view;
+        for (SegmentFile file : current.finished()) {
+            Segment.openReadOnly(file.path()).scanFrom(0, visitor);
+        }
+        current.active().scanFrom(0, visitor);
+    }
+
+    /**
+     * Number of bytes a string takes in UTF-8, without encoding it.
+     */
+    static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Force outstanding writes (unless the policy is NEVER) and release the
+     * active segment.
+     */
+    @Override
+    public void close() {
+        if (fsyncTimer != null) {
+            fsyncTimer.shutdownNow();
+        }
+        Segment active = view.active();
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            active.force();
+        }
+        active.close();
+    }
+
+    /**
+     * One memory-mapped segment file and its index: the active segment,
+     * mapped for writing, or a finished one mapped read-only for a query.
+     */
+    static final class Segment {
+        final Path path;
+        final long baseSequence;
+        final FileChannel channel;
+        final ByteBuffer buffer;
+        final MappedByteBuffer index;
+        /** Sequence of the last record written, or -1 if none. */
+        volatile long lastSequence = -1;
+        /** End of the last complete record; readers may read up to here. */
+        volatile int committed;
+        /** Index entries written; readers may search this many. */
+        volatile int indexEntries;
+        /** Timestamp of the first record, or Long.MAX_VALUE while empty. */
+        volatile long firstTimeMillis = Long.MAX_VALUE;
+        private long maxTimeMillis;
+        private int lastIndexedOffset;
+
+        private Segment(Path path, long baseSequence, FileChannel channel, ByteBuffer buffer,
+                        MappedByteBuffer index) {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.index = index;
+        }
+
+        static Path fileFor(Path directory, long baseSequence) {
+            return directory.resolve(String.format("%020d", baseSequence) + SUFFIX);
+        }
+
+        static Path indexFor(Path segment) {
+            String name = segment.getFileName().toString();
+            return segment.resolveSibling(name.substring(0, name.indexOf('.')) + INDEX_SUFFIX);
+        }
+
+        static long baseSequenceOf(Path file) {
+            String name = file.getFileName().toString();
+            return Long.parseLong(name.substring(0, name.indexOf('.')));
+        }
+
+        private static int indexBytes(long segmentBytes) {
+            return (int) ((segmentBytes / INDEX_INTERVAL_BYTES + 2) * INDEX_ENTRY_BYTES);
+        }
+
+        private static MappedByteBuffer mapIndex(Path segment, long segmentBytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(indexFor(segment), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, indexBytes(segmentBytes));
+            }
+        }
+
+        static Segment create(Path directory, long baseSequence, int size) throws IOException {
+            Path path = fileFor(directory, baseSequence);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(path, baseSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size),
+                    mapIndex(path, size));
+        }
+
+        /** Map an existing segment for appending, find its end, and rebuild its index. */
+        static Segment open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            MappedByteBuffer index = mapIndex(path, size);
+            for (int i = 0; i < index.capacity(); i++) {
+                index.put(i, (byte) 0);
+            }
+            Segment segment = new Segment(path, baseSequenceOf(path), channel, buffer, index);
+            segment.recover();
+            return segment;
+        }
+
+        /**
+         * Write a fresh index for a finished segment, such as one just
+         * rewritten by compaction.
+         */
+        static void reindex(Path path) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            Files.deleteIfExists(indexFor(path));
+            new Segment(path, baseSequenceOf(path), null, buffer, mapIndex(path, buffer.capacity())).recover();
+        }
+
+        /** Find the end of the last complete record, indexing records on the way. */
+        private void recover() {
+            int position = 0;
+            while (position + 4 <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4 + length > buffer.limit()) {
+                    break;
+                }
+                long sequence = buffer.getLong(position + 4);
+                indexRecord(sequence, buffer.getLong(position + 12), position);
+                lastSequence = sequence;
+                position += 4 + length;
+            }
+            buffer.position(position);
+            committed = position;
+        }
+
+        /**
+         * Map a finished segment, and its index if present, for reading. The
+         * mappings outlive the channels, which are closed at once. A
+         * compressed segment is read into memory instead, without an index.
+         */
+        static Segment openReadOnly(Path path) throws IOException {
+            if (path.getFileName().toString().endsWith(COMPRESSED_SUFFIX)) {
+                ByteBuffer contents;
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+                    contents = ByteBuffer.wrap(in.readAllBytes());
+                }
+                Segment segment = new Segment(path, baseSequenceOf(path), null, contents, null);
+                segment.committed = contents.limit();
+                return segment;
+            }
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            MappedByteBuffer index = null;
+            Path indexPath = indexFor(path);
+            if (Files.exists(indexPath)) {
+                try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                    index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+            Segment segment = new Segment(path, baseSequenceOf(path), null, buffer, index);
+            segment.committed = buffer.limit();
+            int entries = 0;
+            if (index != null) {
+                while ((entries + 1) * INDEX_ENTRY_BYTES <= index.limit()
+                        && index.getLong(entries * INDEX_ENTRY_BYTES) != 0) {
+                    entries++;
+                }
+            }
+            segment.indexEntries = entries;
+            return segment;
+        }
+
+        /** Writer only: note a record just written, adding an index entry if one is due. */
+        void indexRecord(long sequence, long timeMillis, int offset) {
+            if (firstTimeMillis == Long.MAX_VALUE) {
+                firstTimeMillis = timeMillis;
+            }
+            maxTimeMillis = Math.max(maxTimeMillis, timeMillis);
+            int entries = indexEntries;
+            if (entries == 0 || offset - lastIndexedOffset >= INDEX_INTERVAL_BYTES) {
+                int at = entries * INDEX_ENTRY_BYTES;
+                index.putLong(at, maxTimeMillis);
+                index.putLong(at + 8, sequence);
+                index.putInt(at + 16, offset);
+                lastIndexedOffset = offset;
+                indexEntries = entries + 1;
+            }
+        }
+
+        /**
+         * Add this segment's records to a room stamped at or after sinceMillis
+         * to entries, until it holds limit. Starts from the last index entry
+         * whose records are all earlier, found by binary search.
+         *
+         * @param room the room's name as in a record, empty for the lobby
+         */
+        void scanSince(long sinceMillis, byte[] room, int limit, List<Entry> entries) {
+            int end = committed;
+            int lo = -1;
+            int hi = indexEntries - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (index.getLong(mid * INDEX_ENTRY_BYTES) < sinceMillis) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            int position = lo < 0 ? 0 : index.getInt(lo * INDEX_ENTRY_BYTES + 16);
+            while (entries.size() < limit && position + 4 <= end) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4 + length > end) {
+                    break;
+                }
+                if (buffer.getLong(position + 12) >= sinceMillis && inRoom(position, room)) {
+                    entries.add(entryAt(position, length));
+                }
+                position += 4 + length;
+            }
+        }
+
+        /**
+         * Look up one record by sequence: binary search of the index, then a
+         * short scan.
+         *
+         * @return the record, or null if this segment does not hold it
+         */
+        Entry find(long sequence) {
+            int end = committed;
+            int lo = -1;
+            int hi = indexEntries - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (index.getLong(mid * INDEX_ENTRY_BYTES + 8) <= sequence) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            int position = lo < 0 ? 0 : index.getInt(lo * INDEX_ENTRY_BYTES + 16);
+            while (position + 4 <= end) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4 + length > end) {
+                    break;
+                }
+                long found = buffer.getLong(position + 4);
+                if (found == sequence) {
+                    return entryAt(position, length);
+                }
+                if (found > sequence) {
+                    break;
+                }
+                position += 4 + length;
+            }
+            return null;
+        }
+
+        /** Visit every complete record from an offset to the end. */
+        void scanFrom(int position, Consumer<Entry> visitor) {
+            int end = committed;
+            while (position + 4 <= end) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4 + length > end) {
+                    break;
+                }
+                visitor.accept(entryAt(position, length));
+                position += 4 + length;
+            }
+        }
+
+        /** @return the length of a record's room name, 0 for the lobby */
+        private int roomLength(int position) {
+            return buffer.get(position + HEADER_BYTES - 1);
+        }
+
+        /** @return true if the record at position was sent to the room, named as in a record */
+        private boolean inRoom(int position, byte[] room) {
+            int length = roomLength(position);
+            if (length != room.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(position + HEADER_BYTES + i) != room[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Entry entryAt(int position, int length) {
+            int roomLength = roomLength(position);
+            String room = ChatterboxServer.LOBBY;
+            if (roomLength > 0) {
+                byte[] name = new byte[roomLength];
+                buffer.get(position + HEADER_BYTES, name);
+                room = new String(name, StandardCharsets.US_ASCII);
+            }
+            int frameStart = position + HEADER_BYTES + roomLength;
+            return new Entry(buffer.getLong(position + 4), buffer.getLong(position + 12),
+                    buffer.getShort(position + 20), room,
+                    buffer.slice(frameStart, position + 4 + length - frameStart).asReadOnlyBuffer());
+        }
+
+        void force() {
+            if (buffer instanceof MappedByteBuffer mapped) {
+                mapped.force();
+            }
+        }
+
+        void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport for ChatterboxServer.
+ *
+ * The calling thread accepts connections and deals them out round-robin to a
+ * small, fixed set of I/O loops. Each loop owns a Selector and services all of
+ * its clients: bytes are read into a per-connection LineFramer and cut into
+ * lines as they arrive, and queued output is gathered into as few writes as
+ * possible whenever the socket will take it. No thread ever waits on a
+ * single client, so an idle chatter costs a few hundred bytes of buffer
+ * rather than a thread stack.
+ */
+class NioChatEngine implements AutoCloseable {
+    /** Size of each loop's scratch buffer for a single channel read. */
+    private static final int READ_CHUNK = 8192;
+
+    private final ChatterboxServer server;
+    private final int port;
+    private final IoLoop[] loops;
+
+    /**
+     * Create an engine; nothing is bound until run() is called.
+     *
+     * @param server the server whose login/broadcast logic handles each line
+     * @param port port to listen on
+     * @param ioThreads number of selector threads
+     * @throws IOException if a Selector cannot be opened
+     */
+    NioChatEngine(ChatterboxServer server, int port, int ioThreads) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+    }
+
+    /**
+     * Start the I/O loops and accept clients forever on the calling thread.
+     *
+     * @throws IOException if the server channel cannot be opened
+     */
+    void run() throws IOException {
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), server.getAcceptBacklog());
+            server.log.info("Server listening on port " + port + " (nio, "
+                    + loops.length + " I/O thread(s), up to " + server.getMaxConnections() + " clients)...");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                String refusal = server.admit(channel.socket().getInetAddress());
+                if (refusal != null) {
+                    // Still in blocking mode, and one short line fits any fresh socket buffer.
+                    ChatterboxServer.reject(Channels.newOutputStream(channel), refusal);
+                    channel.close();
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    server.log.warn("Client setup failed: " + e.getMessage());
+                    channel.close();
+                    server.abandonAdmission();
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * Stop every I/O loop and close the connections they own.
+     */
+    @Override
+    public void close() {
+        for (IoLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * One selector thread and the connections registered with it.
+     * All channel reads, writes and interest changes happen on this thread;
+     * other threads hand work over through the two pending queues.
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_CHUNK);
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<ChannelConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] gather = new ByteBuffer[ChatterboxServer.MAX_GATHER];
+
+        /** Connections with output waiting for their coalescing window to close. */
+        private final List<ChannelConnection> lingering = new ArrayList<>();
+        private volatile boolean running = true;
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "chatterbox-io-" + index);
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(ChannelConnection connection) {
+            pendingFlushes.add(connection);
+            selector.wakeup();
+        }
+
+        /** Run a task on this loop's thread, soon. Safe to call from any thread. */
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long timeoutMillis = 0;
+                while (running) {
+                    selector.select(timeoutMillis);
+                    registerPending();
+                    runPending();
+                    timeoutMillis = flushPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ChannelConnection connection = (ChannelConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException e) {
+                            connection.closeQuietly();
+                        } catch (RuntimeException e) {
+                            failed(connection, e);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                server.log.error("I/O loop failed: " + e.getMessage());
+            } catch (RuntimeException e) {
+                server.log.error("I/O loop failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof ChannelConnection connection) {
+                        connection.closeQuietly();
+                    }
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                ChannelConnection connection = new ChannelConnection(this, channel);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.sendln(ChatterboxServer.AUTH_PROMPT);
+                    server.awaitLogin(connection);
+                } catch (IOException e) {
+                    connection.closeQuietly();
+                } catch (RuntimeException e) {
+                    failed(connection, e);
+                }
+            }
+        }
+
+        /** Run the tasks other threads have handed over: aborts and finished logins. */
+        private void runPending() {
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /** A bug while servicing one connection: report it and drop only that connection. */
+        private void failed(ChannelConnection connection, RuntimeException e) {
+            server.log.error("Error servicing client"
+                    + (connection.user != null ? " '" + connection.user + "'" : "") + "; disconnecting it", e);
+            connection.closeQuietly();
+        }
+
+        /**
+         * Flush every connection whose coalescing window has closed, either
+         * because its delay is up or because a full batch is waiting.
+         *
+         * @return milliseconds until the next window closes, or 0 if none is open
+         */
+        private long flushPending() {
+            ChannelConnection connection;
+            while ((connection = pendingFlushes.poll()) != null) {
+                lingering.add(connection);
+            }
+            long now = System.nanoTime();
+            long nextDue = Long.MAX_VALUE;
+            for (int i = lingering.size() - 1; i >= 0; i--) {
+                connection = lingering.get(i);
+                if (connection.flushDueNanos - now > 0 && !connection.outbound.batchReady()) {
+                    nextDue = Math.min(nextDue, connection.flushDueNanos);
+                    continue;
+                }
+                lingering.set(i, lingering.get(lingering.size() - 1));
+                lingering.remove(lingering.size() - 1);
+                connection.flushScheduled.set(false);
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    connection.closeQuietly();
+                } catch (RuntimeException e) {
+                    failed(connection, e);
+                }
+            }
+            return nextDue == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDue - now));
+        }
+    }
+
+    /**
+     * A client serviced by an IoLoop. Lines are handed to the server as soon as
+     * they are complete; output is queued and written by the owning loop.
+     */
+    private final class ChannelConnection extends ChatterboxServer.Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private SelectionKey key;
+
+        /** When the current coalescing window closes; set with flushScheduled. */
+        private volatile long flushDueNanos;
+
+        /** Frames taken off the queue but not fully written; owned by the loop. */
+        private ByteBuffer[] unwritten;
+
+        /** Incoming bytes, cut into lines; owned by the loop. */
+        private final LineFramer framer;
+
+        /** Set after a rejected login: finish sending the reason, then close. */
+        private volatile boolean closeWhenFlushed;
+
+        /** False while a login is being checked, so no further lines are taken; owned by the loop. */
+        private boolean reading = true;
+
+        ChannelConnection(IoLoop loop, SocketChannel channel) {
+            super(server.newOutboundQueue());
+            this.loop = loop;
+            this.channel = channel;
+            this.framer = server.newLineFramer();
+        }
+
+        /**
+         * Hand the newly queued frame to the owning loop, which writes it once
+         * the coalescing window opened by the first pending frame closes.
+         * Safe to call from any thread.
+         */
+        @Override
+        void onQueued() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                flushDueNanos = System.nanoTime() + outbound.lingerNanos();
+                loop.scheduleFlush(this);
+            } else if (outbound.lingerNanos() > 0 && outbound.batchReady()) {
+                loop.selector.wakeup();
+            }
+        }
+
+        /**
+         * Read whatever the socket has and dispatch every complete line.
+         * Runs on the owning loop.
+         */
+        void onReadable() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                closeQuietly();
+                return;
+            }
+            lastReadNanos = System.nanoTime();
+            framer.append(buffer.flip());
+            dispatchLines();
+        }
+
+        /** Act on every complete line received, until a login pauses reading. */
+        private void dispatchLines() throws IOException {
+            while (reading && !closed.get() && framer.nextLine()) {
+                onLine();
+            }
+        }
+
+        /** Act on the framer's current line. */
+        private void onLine() throws IOException {
+            if (closeWhenFlushed) {
+                return; // ignored, so never decoded
+            }
+            if (user == null) {
+                // Nothing more is read, so the framer's array stays as it is, until the check is done.
+                setReading(false);
+                server.login(this, framer.array(), framer.lineOffset(), framer.lineLength(), loop::execute)
+                        .whenComplete(this::loggedIn);
+                return;
+            }
+            server.handleLine(this, framer.line());
+        }
+
+        /** Loop thread, once login has finished either way. */
+        private void loggedIn(String user, Throwable error) {
+            if (error != null || user == null) {
+                if (error != null) {
+                    closeQuietly();
+                } else {
+                    closeWhenFlushed = true;
+                }
+                return;
+            }
+            if (closed.get()) {
+                server.logout(user, this); // went away while the password was being checked
+                return;
+            }
+            try {
+                setReading(true);
+                dispatchLines();
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        }
+
+        private void setReading(boolean reading) {
+            this.reading = reading;
+            if (key.isValid()) {
+                key.interestOps(reading ? key.interestOps() | SelectionKey.OP_READ
+                        : key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Write queued output until it is gone or the socket is full, one
+         * gathering write per batch, and adjust write interest to match.
+         * Runs on the owning loop.
+         */
+        void flush() throws IOException {
+            if (closed.get()) {
+                return;
+            }
+            ByteBuffer[] batch = loop.gather;
+            while (true) {
+                int count;
+                if (unwritten != null) {
+                    count = unwritten.length;
+                    System.arraycopy(unwritten, 0, batch, 0, count);
+                    unwritten = null;
+                } else {
+                    count = outbound.drainTo(batch);
+                }
+                if (count == 0) {
+                    break;
+                }
+                channel.write(batch, 0, count);
+                int first = 0;
+                while (first < count && !batch[first].hasRemaining()) {
+                    first++;
+                }
+                if (first < count) {
+                    unwritten = Arrays.copyOfRange(batch, first, count);
+                    Arrays.fill(batch, 0, count, null);
+                    key.interestOps((reading ? SelectionKey.OP_READ : 0) | SelectionKey.OP_WRITE);
+                    return;
+                }
+                Arrays.fill(batch, 0, count, null);
+            }
+            key.interestOps(reading ? SelectionKey.OP_READ : 0);
+            lastWriteNanos = System.nanoTime();
+            if (closeWhenFlushed) {
+                close();
+            }
+        }
+
+        @Override
+        void closeAfterFlush() {
+            closeWhenFlushed = true;
+            onQueued(); // make sure a flush is coming to notice the flag
+        }
+
+        /**
+         * Stop queueing output at once and have the owning loop close the
+         * channel, so the key is never cancelled under the loop's feet.
+         * Safe to call from any thread.
+         */
+        @Override
+        void abort() {
+            outbound.close();
+            loop.execute(this::closeQuietly);
+        }
+
+        void closeQuietly() {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            cancelTimer();
+            server.endLoginWait(this);
+            if (user != null) {
+                server.logout(user, this);
+            }
+            outbound.close();
+            outbound.clear();
+            try {
+                channel.close();
+            } finally {
+                server.releaseAdmission();
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO of encoded frames waiting to be written to one client.
+ *
+ * Broadcasters never touch a client's socket; they only enqueue here, and the
+ * connection's own writer (a writer thread or the NIO loop) drains the queue.
+ * A client that stops reading therefore fills its own queue instead of
+ * stalling everybody else's delivery, and what happens once it is full is
+ * decided by the queue's SlowConsumerPolicy.
+ *
+ * The queue is bounded both in frames and in bytes, and keeps the lag
+ * counters (queued bytes, age of the oldest frame, frames dropped) that the
+ * policies act on.
+ *
+ * The consumer removes frames in batches bounded by a coalescing window
+ * (a byte limit and an optional linger delay) so that everything pending for
+ * the client goes out in one gathering write rather than one write per line.
+ *
+ * Safe for any number of producers and a single consumer. The consumer takes
+ * ownership of a frame when it removes it, so a partially written frame is
+ * never dropped out from under it.
+ */
+class OutboundQueue {
+    /** What to do with a new frame when the client has fallen too far behind. */
+    enum SlowConsumerPolicy {
+        /** Evict the oldest queued frames to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the new frame and keep what is already queued. */
+        DROP_NEWEST,
+        /** Cut the client off once its backlog exceeds the byte or lag limit. */
+        DISCONNECT,
+        /**
+         * Make the producer wait for room, up to the lag limit, then cut the
+         * client off. The producer of broadcasts is a fan-out shard, so one
+         * stuck client stalls delivery to every client in its shard; once
+         * that shard falls a whole bus ring behind, every publisher waits too,
+         * and the whole server pauses for up to the lag limit. Only for
+         * setups where losing a line is worse than that.
+         */
+        BLOCK
+    }
+
+    /** Result of offering a frame. */
+    enum Offer {
+        /** The frame is queued (possibly after evicting older ones). */
+        QUEUED,
+        /** The frame was discarded under DROP_NEWEST. */
+        DROPPED,
+        /** The client is too far behind and should be disconnected. */
+        OVERLOADED,
+        /** The queue has been closed. */
+        CLOSED
+    }
+
+    private record Entry(ByteBuffer frame, long queuedAtNanos) {
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int maxFrames;
+    private final long maxBytes;
+    private final long maxLagNanos;
+    private final SlowConsumerPolicy policy;
+    private final long batchBytes;
+    private final long lingerNanos;
+
+    private long queuedBytes;
+    private long droppedFrames;
+    /** When the queue last went from empty to holding frames. */
+    private long pendingSinceNanos;
+    private boolean closed;
+
+    /**
+     * @param maxFrames maximum number of frames held at once
+     * @param maxBytes maximum number of bytes held at once
+     * @param maxLagMillis how old the oldest frame may get under DISCONNECT,
+     *                     and how long a producer waits under BLOCK
+     * @param policy what to do when a limit is reached
+     * @param batchBytes most bytes the consumer removes for one write
+     * @param lingerMillis how long the consumer may wait after the first
+     *                     pending frame for more to arrive; 0 for no wait
+     */
+    OutboundQueue(int maxFrames, long maxBytes, long maxLagMillis, SlowConsumerPolicy policy,
+                  long batchBytes, long lingerMillis) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        this.policy = policy;
+        this.batchBytes = batchBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    /**
+     * Add a frame, applying the slow-consumer policy if the client is behind.
+     * Blocks only under the BLOCK policy.
+     *
+     * @param frame bytes to write; the queue takes ownership of its position
+     * @return what happened to the frame
+     */
+    Offer offer(ByteBuffer frame) {
+        int size = frame.remaining();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            if (closed) {
+                return Offer.CLOSED;
+            }
+            if (entries.isEmpty()) {
+                pendingSinceNanos = now;
+            }
+            switch (policy) {
+                case DROP_OLDEST -> {
+                    while (!entries.isEmpty() && !fits(size)) {
+                        queuedBytes -= entries.pollFirst().frame().remaining();
+                        droppedFrames++;
+                    }
+                }
+                case DROP_NEWEST -> {
+                    if (!fits(size)) {
+                        droppedFrames++;
+                        return Offer.DROPPED;
+                    }
+                }
+                case DISCONNECT -> {
+                    if (!fits(size) || lagNanos(now) > maxLagNanos) {
+                        return Offer.OVERLOADED;
+                    }
+                }
+                case BLOCK -> {
+                    long remaining = maxLagNanos;
+                    while (!closed && !fits(size)) {
+                        if (remaining <= 0) {
+                            return Offer.OVERLOADED;
+                        }
+                        try {
+                            remaining = notFull.awaitNanos(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return Offer.OVERLOADED;
+                        }
+                    }
+                    if (closed) {
+                        return Offer.CLOSED;
+                    }
+                }
+            }
+            entries.addLast(new Entry(frame, now));
+            queuedBytes += size;
+            notEmpty.signal();
+            return Offer.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** An empty queue always accepts one frame, however large. Caller holds the lock. */
+    private boolean fits(int size) {
+        return entries.isEmpty()
+                || (entries.size() < maxFrames && queuedBytes + size <= maxBytes);
+    }
+
+    /** Caller holds the lock. */
+    private long lagNanos(long now) {
+        Entry oldest = entries.peekFirst();
+        return oldest == null ? 0 : now - oldest.queuedAtNanos();
+    }
+
+    /**
+     * Remove as many of the oldest frames as fit in one batch, without
+     * waiting. At least one frame is removed if any is queued, however large.
+     *
+     * @param batch array to fill from index 0
+     * @return number of frames placed in batch
+     */
+    int drainTo(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            return drainLocked(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for pending frames, let the coalescing window fill (until the
+     * batch byte limit is reached or the linger delay after the first frame
+     * has passed), then remove one batch.
+     *
+     * @param batch array to fill from index 0
+     * @return number of frames placed in batch, or 0 once the queue is closed
+     *         and drained
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    int takeBatch(ByteBuffer[] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                if (closed) {
+                    return 0;
+                }
+                notEmpty.await();
+            }
+            long remaining = lingerNanos;
+            while (remaining > 0 && !closed && queuedBytes < batchBytes && entries.size() < batch.length) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return drainLocked(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Caller holds the lock. */
+    private int drainLocked(ByteBuffer[] batch) {
+        int count = 0;
+        long bytes = 0;
+        Entry next;
+        while (count < batch.length && (next = entries.peekFirst()) != null) {
+            int size = next.frame().remaining();
+            if (count > 0 && bytes + size > batchBytes) {
+                break;
+            }
+            batch[count++] = removeFirst();
+            bytes += size;
+        }
+        return count;
+    }
+
+    /**
+     * @return how long the consumer may hold back a write for more frames
+     */
+    long lingerNanos() {
+        return lingerNanos;
+    }
+
+    /**
+     * @return true if enough bytes are queued to fill a batch, so the
+     *         consumer should write now rather than linger
+     */
+    boolean batchReady() {
+        lock.lock();
+        try {
+            return queuedBytes >= batchBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Caller holds the lock. */
+    private ByteBuffer removeFirst() {
+        Entry entry = entries.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        queuedBytes -= entry.frame().remaining();
+        notFull.signalAll();
+        return entry.frame();
+    }
+
+    /**
+     * Refuse further offers and release any blocked producers. Frames already
+     * queued can still be drained.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard every queued frame.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            queuedBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of frames currently queued
+     */
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes currently queued and not yet handed to the writer
+     */
+    long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how long the oldest queued frame has been waiting, in
+     *         milliseconds, or 0 if nothing is queued
+     */
+    long oldestAgeMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(lagNanos(System.nanoTime()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how long the queue has held frames without once being emptied,
+     *         in milliseconds, or 0 if nothing is queued; unlike
+     *         oldestAgeMillis, not reset when DROP_OLDEST discards the head
+     */
+    long pendingMillis() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pendingSinceNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total frames discarded by DROP_OLDEST or DROP_NEWEST so far
+     */
+    long droppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a one-line summary of the lag counters, for log messages
+     */
+    String describeLag() {
+        lock.lock();
+        try {
+            return entries.size() + " line(s) / " + queuedBytes + " byte(s) queued, oldest "
+                    + TimeUnit.NANOSECONDS.toMillis(lagNanos(System.nanoTime())) + " ms, "
+                    + droppedFrames + " dropped";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent broadcasts, kept in memory for replay to clients as they
+ * join and for catching up clients that resume after a disconnect.
+ *
+ * A bounded ring of encoded frames, limited both by message count and by
+ * total bytes; the oldest frames are forgotten first. It is fed by its own
+ * consumer on the message bus, registered upstream of the fan-out shards, so
+ * when a shard reaches a join event every earlier broadcast is already here.
+ * The same consumer also gives each message its sequenced frame, the line
+ * prefixed with "#sequence " for clients that track their position.
+ *
+ * Only broadcasts to the lobby are kept, since that is where every client
+ * joins and resumes; other rooms are not replayed.
+ *
+ * Replay hands the client all the lines it needs as one pre-built buffer,
+ * which goes out in a single write. The most recent buffer of each kind is
+ * cached until the next broadcast arrives, so a crowd reconnecting at once
+ * shares one copy instead of each building its own.
+ */
+class RecentHistory {
+    private final int maxMessages;
+    private final long maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Ring of the newest sequenced frames, oldest at head; guarded by lock.
+    private final ByteBuffer[] frames;
+    private final long[] sequences;
+    private int head;
+    private int count;
+    private long bytes;
+    /** Highest sequence that has been forgotten (or came before this run). */
+    private long evictedThrough;
+
+    /** The last replay built for each kind of client, keyed by its range. */
+    private final Replay[] cache = new Replay[2];
+
+    private record Replay(long after, long through, int maxMessages, long maxBytes, ByteBuffer buffer) {
+    }
+
+    /**
+     * @param maxMessages most broadcasts retained; 0 keeps none
+     * @param maxBytes most encoded bytes retained
+     * @param firstSequence sequence of the first broadcast this run
+     */
+    RecentHistory(int maxMessages, long maxBytes, long firstSequence) {
+        this.maxMessages = maxMessages;
+        this.evictedThrough = firstSequence - 1;
+        this.maxBytes = maxBytes;
+        this.frames = new ByteBuffer[Math.max(1, maxMessages)];
+        this.sequences = new long[frames.length];
+    }
+
+    /**
+     * Bus consumer: give each broadcast its sequenced frame and retain it,
+     * forgetting the oldest as needed.
+     */
+    void onMessage(MessageBus.Message message, boolean endOfBatch) {
+        if (message.frame == null) {
+            return;
+        }
+        ByteBuffer sequenced = sequencedFrame(message.sequence, message.frame);
+        message.sequencedFrame = sequenced;
+        if (!ChatterboxServer.LOBBY.equals(message.room)) {
+            return;
+        }
+
+        int size = sequenced.remaining();
+        lock.lock();
+        try {
+            while (count > 0 && (count == maxMessages || bytes + size > maxBytes)) {
+                evictOldest();
+            }
+            if (maxMessages == 0 || size > maxBytes) {
+                evictedThrough = message.sequence; // never fits
+                return;
+            }
+            int tail = (head + count) % frames.length;
+            frames[tail] = sequenced;
+            sequences[tail] = message.sequence;
+            bytes += size;
+            count++;
+            cache[0] = null;
+            cache[1] = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Caller holds the lock. */
+    private void evictOldest() {
+        evictedThrough = sequences[head];
+        bytes -= frames[head].remaining();
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+    }
+
+    /**
+     * @param sequence a message's sequence number
+     * @param frame the message's encoded line
+     * @return a read-only copy of the line prefixed with "#sequence "
+     */
+    static ByteBuffer sequencedFrame(long sequence, ByteBuffer frame) {
+        byte[] prefix = ("#" + sequence + " ").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer sequenced = ByteBuffer.allocate(prefix.length + frame.remaining());
+        sequenced.put(prefix).put(frame.duplicate());
+        return sequenced.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * @param after a sequence a resuming client last saw
+     * @return true if no broadcast after it has been forgotten yet
+     */
+    boolean retainsAfter(long after) {
+        lock.lock();
+        try {
+            return after >= evictedThrough;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Build (or reuse) the replay for a client joining at a given point: the
+     * newest retained broadcasts between two sequence numbers, within limits.
+     *
+     * @param after only broadcasts with a higher sequence are included
+     * @param before only broadcasts with a lower sequence are included
+     * @param limitMessages most broadcasts included
+     * @param limitBytes most bytes included
+     * @param sequenced true to include each line's "#sequence " prefix
+     * @return a read-only buffer holding the lines in order, or null if there
+     *         are none
+     */
+    ByteBuffer replay(long after, long before, int limitMessages, long limitBytes, boolean sequenced) {
+        lock.lock();
+        try {
+            int end = count;
+            while (end > 0 && sequences[index(end - 1)] >= before) {
+                end--;
+            }
+            if (end == 0) {
+                return null;
+            }
+            long through = sequences[index(end - 1)];
+            Replay cached = cache[sequenced ? 1 : 0];
+            if (cached != null && cached.after() == after && cached.through() == through
+                    && cached.maxMessages() == limitMessages && cached.maxBytes() == limitBytes) {
+                return cached.buffer();
+            }
+
+            int start = end;
+            long total = 0;
+            while (start > 0 && end - start < limitMessages && sequences[index(start - 1)] > after) {
+                long size = frames[index(start - 1)].remaining() - (sequenced ? 0 : prefixLength(start - 1));
+                if (total + size > limitBytes) {
+                    break;
+                }
+                total += size;
+                start--;
+            }
+            if (start == end) {
+                return null;
+            }
+            ByteBuffer replay = ByteBuffer.allocate((int) total);
+            for (int i = start; i < end; i++) {
+                ByteBuffer frame = frames[index(i)].duplicate();
+                if (!sequenced) {
+                    frame.position(prefixLength(i));
+                }
+                replay.put(frame);
+            }
+            replay = replay.flip().asReadOnlyBuffer();
+            if (end == count) {
+                cache[sequenced ? 1 : 0] = new Replay(after, through, limitMessages, limitBytes, replay);
+            }
+            return replay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Caller holds the lock. */
+    private int index(int offset) {
+        return (head + offset) % frames.length;
+    }
+
+    /** Length of the "#sequence " prefix of a retained frame. Caller holds the lock. */
+    private int prefixLength(int offset) {
+        ByteBuffer frame = frames[index(offset)];
+        int i = frame.position();
+        while (frame.get(i) != ' ') {
+            i++;
+        }
+        return i + 1 - frame.position();
+    }
+}
@@ -0,0 +1,348 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Full-text index over the broadcast history: for every term, the sequence
+ * numbers of the messages that contain it.
+ *
+ * Each posting list is a byte array of varint-encoded gaps between
+ * successive sequence numbers, so a term that appears in millions of
+ * messages costs a byte or two per message. The index is updated
+ * incrementally by its own consumer on the message bus, off the broadcast
+ * path, and can be queried from any thread while it is being updated.
+ *
+ * Terms are maximal runs of letters and digits, lower-cased, up to
+ * MAX_TERM_LENGTH characters; longer runs are truncated. Each message is
+ * also indexed under its room, as a term no word can be ('@' and the room's
+ * name), so a search in one room is one more list in the intersection.
+ *
+ * When history retention deletes old messages, removeBefore() drops them
+ * from the index too: searches stop finding them at once, and the indexing
+ * thread rebuilds the affected posting lists without them when it next
+ * handles a message.
+ */
+class SearchIndex {
+    /** Longest term indexed; longer words are indexed by their prefix. */
+    static final int MAX_TERM_LENGTH = 32;
+
+    private final Map<String, Postings> terms = new ConcurrentHashMap<>();
+
+    /** Messages before this sequence are no longer in the history. */
+    private volatile long removedBefore;
+    /** Indexing thread only: how far the posting lists have been pruned. */
+    private long prunedBefore;
+
+    /** Postings between skip-table entries. */
+    private static final int SKIP_INTERVAL = 128;
+
+    /**
+     * One term's posting list, with a skip table recording where every
+     * SKIP_INTERVAL-th posting starts and the sequence before it, so a reader
+     * can start decoding part-way through. Appended to by the indexing thread
+     * only; a reader that sees a length also sees the bytes and skip entries
+     * up to it, because arrays are replaced before the counts are published.
+     */
+    private static final class Postings {
+        private volatile byte[] data = new byte[8];
+        private volatile int length;
+        private volatile int[] skipOffsets = new int[4];
+        private volatile long[] skipBases = new long[4];
+        private volatile int skips;
+        private long last = -1;
+        private int count;
+
+        /** Indexing thread only. */
+        void add(long sequence) {
+            if (sequence <= last) {
+                return; // term repeated within one message
+            }
+            byte[] bytes = data;
+            int at = length;
+            if (count % SKIP_INTERVAL == 0) {
+                int k = skips;
+                if (k == skipOffsets.length) {
+                    skipOffsets = Arrays.copyOf(skipOffsets, k * 2);
+                    skipBases = Arrays.copyOf(skipBases, k * 2);
+                }
+                skipOffsets[k] = at;
+                skipBases[k] = last;
+                skips = k + 1;
+            }
+            if (at + 10 > bytes.length) {
+                data = bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            long gap = sequence - last;
+            while ((gap & ~0x7FL) != 0) {
+                bytes[at++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            bytes[at++] = (byte) gap;
+            last = sequence;
+            count++;
+            length = at;
+        }
+
+        /** @return a cursor over the postings published so far */
+        Cursor cursor() {
+            int end = length;
+            int k = skips;
+            int[] offsets = skipOffsets;
+            long[] bases = skipBases;
+            while (k > 0 && offsets[k - 1] >= end) {
+                k--; // skip entry for a posting not yet published
+            }
+            return new Cursor(data, end, offsets, bases, k);
+        }
+    }
+
+    /** Forward iterator over a snapshot of a posting list. */
+    private static final class Cursor {
+        private final byte[] data;
+        private final int end;
+        private final int[] skipOffsets;
+        private final long[] skipBases;
+        private final int skips;
+        private int position;
+        private long current = -1;
+
+        Cursor(byte[] data, int end, int[] skipOffsets, long[] skipBases, int skips) {
+            this.data = data;
+            this.end = end;
+            this.skipOffsets = skipOffsets;
+            this.skipBases = skipBases;
+            this.skips = skips;
+        }
+
+        /** @return the next sequence, or -1 at the end */
+        long next() {
+            if (position >= end) {
+                return -1;
+            }
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                gap |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += gap;
+            return current;
+        }
+
+        /**
+         * Jump forward, using the skip table, to just before the first
+         * posting that could be at or after target.
+         */
+        void seek(long target) {
+            int lo = -1;
+            int hi = skips - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (skipBases[mid] < target) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (lo >= 0 && skipOffsets[lo] > position) {
+                position = skipOffsets[lo];
+                current = skipBases[lo];
+            }
+        }
+
+        /** @return the first sequence at or after target, or -1 at the end */
+        long advanceTo(long target) {
+            long sequence = current;
+            if (sequence < target) {
+                seek(target);
+                sequence = current;
+            }
+            while (sequence < target) {
+                sequence = next();
+                if (sequence < 0) {
+                    return -1;
+                }
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Bus consumer: index each broadcast's text.
+     */
+    void onMessage(MessageBus.Message message, boolean endOfBatch) {
+        if (prunedBefore < removedBefore) {
+            prune();
+        }
+        if (message.frame != null) {
+            add(message.sequence, message.room, message.text);
+        }
+    }
+
+    /**
+     * Index one message. Sequences must be added in increasing order.
+     *
+     * @param sequence the message's sequence number
+     * @param room the room it was sent to
+     * @param text the message text
+     */
+    void add(long sequence, String room, String text) {
+        terms.computeIfAbsent(roomTerm(room), t -> new Postings()).add(sequence);
+        for (String term : terms(text)) {
+            terms.computeIfAbsent(term, t -> new Postings()).add(sequence);
+        }
+    }
+
+    /**
+     * Forget messages that are no longer in the history. Any thread.
+     *
+     * @param sequence the oldest message still kept
+     */
+    void removeBefore(long sequence) {
+        if (sequence > removedBefore) {
+            removedBefore = sequence;
+        }
+    }
+
+    /**
+     * Indexing thread: replace each posting list holding removed messages
+     * with a copy without them, or drop it if nothing is left. Searches
+     * already running keep the list they started with.
+     */
+    private void prune() {
+        long before = removedBefore;
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            Cursor cursor = entry.getValue().cursor();
+            long sequence = cursor.next();
+            if (sequence < 0 || sequence >= before) {
+                continue;
+            }
+            sequence = cursor.advanceTo(before);
+            if (sequence < 0) {
+                terms.remove(entry.getKey());
+                continue;
+            }
+            Postings kept = new Postings();
+            for (; sequence >= 0; sequence = cursor.next()) {
+                kept.add(sequence);
+            }
+            entry.setValue(kept);
+        }
+        prunedBefore = before;
+    }
+
+    /** @return the term a room's messages are indexed under */
+    private static String roomTerm(String room) {
+        return "@" + room;
+    }
+
+    /**
+     * Split text into index terms.
+     *
+     * @param text message or query text
+     * @return its terms, in order, possibly with repeats
+     */
+    static List<String> terms(String text) {
+        List<String> found = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int cp = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(cp)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(cp));
+                }
+            } else if (!term.isEmpty()) {
+                found.add(term.toString());
+                term.setLength(0);
+            }
+            i += Character.charCount(cp);
+        }
+        return found;
+    }
+
+    /**
+     * Find the newest messages that contain every term of a query.
+     *
+     * Works backwards in windows of the rarest term's skip table: each window
+     * is intersected with the other terms (which jump straight to it), and
+     * windows are added until enough matches are found, so a query costs
+     * about the same however long the history is.
+     *
+     * @param query words to look for
+     * @param room the room whose messages to search
+     * @param limit most sequence numbers returned
+     * @return matching sequence numbers, oldest first; empty if the query has
+     *         no terms or nothing matches
+     */
+    long[] search(String query, String room, int limit) {
+        List<String> queryTerms = terms(query);
+        if (queryTerms.isEmpty()) {
+            return new long[0];
+        }
+        queryTerms.add(roomTerm(room));
+        List<Postings> lists = new ArrayList<>();
+        Postings rarest = null;
+        for (String term : queryTerms) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                return new long[0];
+            }
+            lists.add(postings);
+            if (rarest == null || postings.length < rarest.length) {
+                rarest = postings;
+            }
+        }
+
+        Cursor windows = rarest.cursor();
+        ArrayDeque<Long> matches = new ArrayDeque<>();
+        long oldest = removedBefore;
+        long upper = Long.MAX_VALUE;
+        for (int k = windows.skips - 1; k >= 0 && matches.size() < limit && upper > oldest; k--) {
+            long lower = Math.max(windows.skipBases[k] + 1, oldest);
+            List<Long> found = intersect(lists, lower, upper);
+            for (int i = found.size() - 1; i >= 0 && matches.size() < limit; i--) {
+                matches.addFirst(found.get(i));
+            }
+            upper = lower;
+        }
+        return matches.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /** Sequences in [lower, upper) present in every list, in order. */
+    private static List<Long> intersect(List<Postings> lists, long lower, long upper) {
+        List<Cursor> cursors = new ArrayList<>(lists.size());
+        for (Postings postings : lists) {
+            cursors.add(postings.cursor());
+        }
+        List<Long> found = new ArrayList<>();
+        long candidate = cursors.get(0).advanceTo(lower);
+        while (candidate >= 0 && candidate < upper) {
+            boolean all = true;
+            for (Cursor cursor : cursors) {
+                long at = cursor.advanceTo(candidate);
+                if (at != candidate) {
+                    candidate = at;
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                found.add(candidate);
+                candidate = cursors.get(0).next();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return number of distinct terms indexed
+     */
+    int termCount() {
+        return terms.size();
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log sink for the server's console (and optional file) output.
+ *
+ * Logging only places a record in a fixed-size lock-free ring; a single
+ * background thread drains the ring in batches and does the actual terminal
+ * and file I/O. A thread on the broadcast path therefore never waits on a
+ * slow terminal or disk. If the ring is full the record is dropped and
+ * counted, and the drop count is reported once the writer catches up.
+ *
+ * Console output keeps the server's original format: the bare message on
+ * stdout, or on stderr for warnings and errors. File output adds a
+ * timestamp and level, and rolls over to numbered backups by size.
+ */
+class ServerLog implements AutoCloseable {
+    /** Severity of a record; records below the configured level are skipped. */
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /** Most records the writer handles before flushing its sinks. */
+    private static final int BATCH = 256;
+
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private record Entry(Level level, long timeMillis, String message) {
+    }
+
+    private final Level threshold;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Path file;
+    private final long fileMaxBytes;
+    private final int fileBackups;
+
+    // Bounded multi-producer ring (Vyukov style): each slot's sequence tells
+    // producers and the consumer whose turn it is, so no locks are needed.
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // consumer only
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    private BufferedWriter fileWriter;
+    private long fileBytes;
+
+    /**
+     * Create a log and start its writer thread.
+     *
+     * @param threshold lowest level that is recorded
+     * @param capacity ring size; rounded up to a power of two
+     * @param file file to append to as well as the console, or null for none
+     * @param fileMaxBytes size at which the file rolls over (counted in characters)
+     * @param fileBackups how many rolled-over files to keep
+     */
+    ServerLog(Level threshold, int capacity, Path file, long fileMaxBytes, int fileBackups) {
+        this.threshold = threshold;
+        // Own buffered streams on the same descriptors, flushed once per batch
+        // rather than on every println as System.out/System.err are.
+        this.out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false, System.out.charset());
+        this.err = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 16),
+                false, System.err.charset());
+        this.file = file;
+        this.fileMaxBytes = fileMaxBytes;
+        this.fileBackups = fileBackups;
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+        this.writer = new Thread(this::drain, "chatterbox-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Log an error together with the stack trace of its cause.
+     *
+     * @param message what failed
+     * @param cause the exception
+     */
+    void error(String message, Throwable cause) {
+        StringWriter trace = new StringWriter();
+        cause.printStackTrace(new PrintWriter(trace));
+        log(Level.ERROR, message + System.lineSeparator() + trace.toString().stripTrailing());
+    }
+
+    /**
+     * @param level a severity
+     * @return true if records at that level are kept; lets callers skip
+     *         building messages that would be thrown away
+     */
+    boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * Queue a record for the writer thread. Never blocks.
+     *
+     * @param level severity of the record
+     * @param message text of the record
+     */
+    void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!offer(new Entry(level, System.currentTimeMillis(), message))) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private boolean offer(Entry entry) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            long diff = sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, entry);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                return false; // full
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /** Consumer only. */
+    private Entry poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Entry entry = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return entry;
+    }
+
+    /** Writer thread: drain in batches, then sleep until a producer wakes us. */
+    private void drain() {
+        while (true) {
+            int written = 0;
+            Entry entry;
+            while (written < BATCH && (entry = poll()) != null) {
+                write(entry);
+                written++;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                write(new Entry(Level.WARN, System.currentTimeMillis(),
+                        "Log writer fell behind; " + lost + " record(s) dropped."));
+            }
+            if (written > 0) {
+                flushSinks();
+                continue;
+            }
+            if (closed) {
+                closeFile();
+                return;
+            }
+            sleeping = true;
+            if (sequences.get((int) head & mask) != head + 1 && !closed) {
+                LockSupport.park(this);
+            }
+            sleeping = false;
+        }
+    }
+
+    private void write(Entry entry) {
+        (entry.level().compareTo(Level.WARN) >= 0 ? err : out).println(entry.message());
+        if (file == null) {
+            return;
+        }
+        String line = TIMESTAMP.format(Instant.ofEpochMilli(entry.timeMillis())) + " " + entry.level()
+                + " " + entry.message() + System.lineSeparator();
+        try {
+            if (fileWriter == null || fileBytes >= fileMaxBytes) {
+                rollFile();
+            }
+            fileWriter.write(line);
+            fileBytes += line.length();
+        } catch (IOException e) {
+            err.println("Log file error: " + e.getMessage());
+        }
+    }
+
+    private void flushSinks() {
+        out.flush();
+        err.flush();
+        if (fileWriter != null) {
+            try {
+                fileWriter.flush();
+            } catch (IOException e) {
+                err.println("Log file error: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Shift file -> file.1 -> file.2 ..., dropping the oldest, and reopen. */
+    private void rollFile() throws IOException {
+        if (fileWriter != null) {
+            fileWriter.close();
+            fileWriter = null;
+            for (int i = fileBackups - 1; i >= 1; i--) {
+                Path from = backup(i);
+                if (Files.exists(from)) {
+                    Files.move(from, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (fileBackups > 0) {
+                Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file);
+            }
+        }
+        fileWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileBytes = Files.size(file);
+    }
+
+    private Path backup(int n) {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+
+    private void closeFile() {
+        if (fileWriter != null) {
+            try { fileWriter.close(); } catch (IOException ignored) {}
+            fileWriter = null;
+        }
+    }
+
+    /**
+     * Write out everything already queued, then stop the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
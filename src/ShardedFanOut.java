@@ -0,0 +1,213 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel fan-out stage for broadcasts.
+ *
+ * Logged-in connections are dealt out round-robin to a fixed number of
+ * shards. Each shard is a consumer of the server's MessageBus with its own
+ * thread, and delivers every message on the bus to those of its own
+ * connections that are in the message's room, so a message to thousands of
+ * clients is spread across all cores instead of being walked by the
+ * sender's thread.
+ *
+ * Each shard indexes its connections by room: a concurrent map from room
+ * name to a copy-on-write set of members. Delivering a message looks up one
+ * room and walks a plain array, so its cost follows the size of the room,
+ * not of the server; joining or leaving copies the room's array in one
+ * shard. A room is dropped from the index when its last member leaves.
+ *
+ * Every connection lives in exactly one shard and every shard sees the bus
+ * in sequence order, so all recipients receive broadcasts in the same total
+ * order.
+ *
+ * A connection joins through a join event on the bus. The shard that owns
+ * it replays the recent history up to that event and only then starts
+ * delivering to it, so the client sees every broadcast exactly once: older
+ * ones in the replay, newer ones live. The shards run downstream of the
+ * recent-history consumer, so the replay is never missing anything. Only
+ * the lobby is replayed: every connection starts there.
+ *
+ * Moving to another room is a move event on the bus, applied by the same
+ * shard in order, so the client gets its old room's broadcasts up to the
+ * event and its new room's after it, with a notice between them. Only
+ * removal happens off the shard thread; membership changes lock the
+ * connection, so a connection is in at most one room of its shard, and
+ * only after its replay.
+ */
+class ShardedFanOut {
+    private final ChatterboxServer server;
+    private final MessageBus bus;
+    private final RecentHistory recent;
+    private final int replayMessages;
+    private final long replayMaxBytes;
+    /** Per shard: room name -> members of that room in the shard. */
+    private final List<Map<String, Set<ChatterboxServer.Connection>>> shards = new ArrayList<>();
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * Create the shards and register each as a consumer of the bus, after a
+     * consumer that keeps the recent history.
+     *
+     * @param server the server whose deliver() each shard calls
+     * @param bus the bus broadcasts are published on; not yet started
+     * @param shardCount number of shards and consumer threads
+     * @param recent recent broadcasts to replay to joining connections
+     * @param replayMessages most broadcasts replayed to a new connection
+     * @param replayMaxBytes most bytes replayed to a new connection
+     */
+    ShardedFanOut(ChatterboxServer server, MessageBus bus, int shardCount, RecentHistory recent,
+                  int replayMessages, long replayMaxBytes) {
+        this.server = server;
+        this.bus = bus;
+        this.recent = recent;
+        this.replayMessages = replayMessages;
+        this.replayMaxBytes = replayMaxBytes;
+        MessageBus.Stage recentStage = bus.addConsumer("chatterbox-recent", recent::onMessage);
+        for (int i = 0; i < shardCount; i++) {
+            int index = i;
+            Map<String, Set<ChatterboxServer.Connection>> rooms = new ConcurrentHashMap<>();
+            shards.add(rooms);
+            bus.addConsumer("chatterbox-fanout-" + i, (message, endOfBatch) -> {
+                if (message.joining != null) {
+                    if (message.joining.shard == index) {
+                        join(message, rooms);
+                    }
+                } else if (message.moving != null) {
+                    if (message.moving.shard == index) {
+                        move(message.moving, message.room, rooms);
+                    }
+                } else {
+                    Set<ChatterboxServer.Connection> members = rooms.get(message.room);
+                    if (members != null) {
+                        server.deliver(message.frame, message.sequencedFrame, members);
+                    }
+                }
+            }, recentStage);
+        }
+    }
+
+    /**
+     * Assign a newly logged-in connection to a shard. Delivery starts, after
+     * the replay, once the shard reaches the join event.
+     *
+     * @param connection the connection to start delivering to
+     */
+    void add(ChatterboxServer.Connection connection) {
+        connection.shard = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        bus.publishJoin(connection);
+    }
+
+    /**
+     * Shard thread: replay history to a joining connection, then deliver
+     * live. A resuming connection gets everything it missed that is still
+     * retained; a new one gets the last few broadcasts. A resume point this
+     * server never issued (sequence numbers restart with the server when
+     * there is no history directory) is treated like a lost one.
+     */
+    private void join(MessageBus.Message event, Map<String, Set<ChatterboxServer.Connection>> rooms) {
+        ChatterboxServer.Connection connection = event.joining;
+        List<ChatterboxServer.Connection> recipient = List.of(connection);
+        ByteBuffer replay;
+        if (connection.resumeAfter >= 0) {
+            boolean issued = connection.resumeAfter < event.sequence;
+            if (!issued || !recent.retainsAfter(connection.resumeAfter)) {
+                ByteBuffer notice = ChatterboxServer.encodeLine("Some messages after #" + connection.resumeAfter
+                        + " are no longer available.");
+                server.deliver(notice, notice, recipient);
+            }
+            replay = issued
+                    ? recent.replay(connection.resumeAfter, event.sequence, Integer.MAX_VALUE, Long.MAX_VALUE, true)
+                    : recent.replay(-1, event.sequence, replayMessages, replayMaxBytes, true);
+        } else {
+            replay = recent.replay(-1, event.sequence, replayMessages, replayMaxBytes, connection.sequenced);
+        }
+        if (replay != null) {
+            server.deliver(replay, replay, recipient);
+        }
+        synchronized (connection) {
+            if (!connection.departed) { // else removed before its join was processed
+                connection.memberOf = ChatterboxServer.LOBBY;
+                enter(rooms, ChatterboxServer.LOBBY, connection);
+            }
+        }
+    }
+
+    /**
+     * Move a connection to another room. It receives broadcasts to its old
+     * room published before this call, and to the new room after it, once
+     * its shard reaches the move event.
+     *
+     * @param connection a connection previously passed to add()
+     * @param room the room to move to
+     */
+    void move(ChatterboxServer.Connection connection, String room) {
+        bus.publishMove(connection, room);
+    }
+
+    /** Shard thread: apply a move event, and tell the client it has arrived. */
+    private void move(ChatterboxServer.Connection connection, String room,
+                      Map<String, Set<ChatterboxServer.Connection>> rooms) {
+        synchronized (connection) {
+            if (connection.departed) {
+                return;
+            }
+            exit(rooms, connection.memberOf, connection);
+            connection.memberOf = room;
+            enter(rooms, room, connection);
+        }
+        ByteBuffer notice = ChatterboxServer.encodeLine("You are now in " + room + " (" + roomSize(room)
+                + " member(s)).");
+        server.deliver(notice, notice, List.of(connection));
+    }
+
+    private static void enter(Map<String, Set<ChatterboxServer.Connection>> rooms, String room,
+                              ChatterboxServer.Connection connection) {
+        rooms.compute(room, (name, members) -> {
+            Set<ChatterboxServer.Connection> set = members != null ? members : new CopyOnWriteArraySet<>();
+            set.add(connection);
+            return set;
+        });
+    }
+
+    private static void exit(Map<String, Set<ChatterboxServer.Connection>> rooms, String room,
+                             ChatterboxServer.Connection connection) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(connection);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * @param room a room name
+     * @return number of connections in the room, across all shards
+     */
+    int roomSize(String room) {
+        int size = 0;
+        for (Map<String, Set<ChatterboxServer.Connection>> rooms : shards) {
+            Set<ChatterboxServer.Connection> members = rooms.get(room);
+            size += members != null ? members.size() : 0;
+        }
+        return size;
+    }
+
+    /**
+     * Stop delivering to a connection.
+     *
+     * @param connection a connection previously passed to add()
+     */
+    void remove(ChatterboxServer.Connection connection) {
+        synchronized (connection) {
+            connection.departed = true;
+            if (connection.memberOf != null) {
+                exit(shards.get(connection.shard), connection.memberOf, connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel for the many short, usually cancelled deadlines a
+ * server keeps per connection: login deadlines, keepalive checks.
+ *
+ * Time is cut into ticks, and the wheel is a ring of buckets, one per tick.
+ * A timeout goes into the bucket its deadline falls in, with a count of the
+ * full turns of the wheel still to wait. Scheduling and cancelling are both
+ * O(1) and never block: new timeouts are handed to the wheel's thread
+ * through a queue, and cancelling just flips the timeout's state (the thread
+ * unlinks it later). Each tick the thread visits only its current bucket.
+ *
+ * Deadlines are rounded up to the tick, so a timeout fires up to one tick
+ * late, never early. Tasks run on the wheel's thread and must be short.
+ */
+class TimerWheel implements AutoCloseable {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * A scheduled task, which can be cancelled until it runs.
+     */
+    final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // Owned by the wheel thread.
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Stop the task from running, if it has not already.
+         *
+         * @return true if this call cancelled it
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            cancelled.add(this);
+            return true;
+        }
+    }
+
+    /** One slot of the wheel: a doubly-linked list of timeouts. Wheel thread only. */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final ServerLog log;
+    private final Thread thread;
+    private volatile boolean running = true;
+    /** Ticks completed; wheel thread only. */
+    private long tick;
+
+    /**
+     * Start a wheel and its thread.
+     *
+     * @param name name of the wheel's thread
+     * @param tickMillis resolution of the wheel
+     * @param buckets number of slots; rounded up to a power of two
+     * @param log where to report tasks that fail
+     */
+    TimerWheel(String name, long tickMillis, int buckets, ServerLog log) {
+        if (tickMillis < 1 || buckets < 1 || buckets > 1 << 24) {
+            throw new IllegalArgumentException("tickMillis must be positive and buckets in 1.." + (1 << 24));
+        }
+        int size = Integer.highestOneBit(buckets - 1) << 1;
+        this.wheel = new Bucket[Math.max(1, size)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.log = log;
+        this.thread = Thread.ofPlatform().daemon().name(name).unstarted(this::run);
+        thread.start();
+    }
+
+    /**
+     * Run a task once, after a delay. Safe to call from any thread.
+     *
+     * @param task what to run, on the wheel's thread
+     * @param delayMillis how long to wait
+     * @return a handle for cancelling the task
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep = deadline - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            unlinkCancelled();
+            placeScheduled();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /** Put newly scheduled timeouts in the bucket their deadline falls in. */
+    private void placeScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() != PENDING) {
+                continue;
+            }
+            // Round up to a tick, and never into one that has already passed.
+            long due = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    /** Run the current bucket's timeouts that are due this turn. */
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                bucket.remove(timeout);
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Timer task failed", e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Stop the wheel's thread. Timeouts still pending never run.
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket: allows a steady rate of events, plus bursts of up
+ * to a fixed size after a quiet spell.
+ *
+ * Rather than a token count and a last-refill time, which would have to
+ * change together, the bucket is kept as a single number: the time at which
+ * it will be full again. Taking a token pushes that time one interval
+ * further out; it is allowed if the bucket would then still be no more than
+ * `burst` intervals from full. One compare-and-set per event, and threads
+ * sharing a bucket never block each other.
+ */
+class TokenBucket {
+    private final long intervalNanos;
+    private final long capacityNanos;
+    /** System.nanoTime() at which the bucket is (or was) full. */
+    private final AtomicLong fullAtNanos;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param perSecond tokens added per second
+     * @param burst most tokens the bucket holds
+     */
+    TokenBucket(int perSecond, int burst) {
+        if (perSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("perSecond and burst must be positive");
+        }
+        this.intervalNanos = 1_000_000_000L / perSecond;
+        this.capacityNanos = intervalNanos * burst;
+        this.fullAtNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take a token if there is one.
+     *
+     * @return true if a token was taken; false if the bucket is empty
+     */
+    boolean tryTake() {
+        long now = System.nanoTime();
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long next = (fullAt - now < 0 ? now : fullAt) + intervalNanos;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAtNanos.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the bucket is full, so replacing it with a new one
+     *         would change nothing
+     */
+    boolean isFull() {
+        return fullAtNanos.get() - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,113 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/*
+ To compile and run (requires JDK 21 or later):
+
+ javac -d out src/*.java test/*.java && java -cp out AuthLineTest
+*/
+
+/**
+ * Behaviour tests for AuthLine: which lines are accepted, what is read from
+ * them, and checking the password against a CredentialStore.
+ *
+ * Plain Java, with no test framework: each test throws an AssertionError
+ * on the first check that fails, and main exits non-zero if any did.
+ */
+public class AuthLineTest {
+    /**
+     * Run every test.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        userAndPassword();
+        lastSequence();
+        malformedLines();
+        lineWithinALargerArray();
+        reuseForgetsTheLastLine();
+        passwordCheck();
+        System.out.println("AuthLineTest: all tests passed");
+    }
+
+    static void userAndPassword() {
+        AuthLine auth = parsed(" \talice   s3cret\t ");
+        check(auth.user().equals("alice"), "surrounding and repeated whitespace is skipped");
+        check(Arrays.equals(auth.password(), bytes("s3cret")), "the password is the second token");
+        check(!auth.sequenced() && auth.resumeAfter() == -1, "two tokens are a fresh login");
+        check(parsed("zoë pässword").user().equals("zoë"), "the username decodes as UTF-8");
+    }
+
+    static void lastSequence() {
+        AuthLine auth = parsed("alice s3cret 42");
+        check(auth.sequenced() && auth.resumeAfter() == 42, "a third token is the last sequence seen");
+        auth = parsed("alice s3cret -1");
+        check(auth.sequenced() && auth.resumeAfter() == -1, "-1 asks for sequence numbers without a resume");
+        check(parsed("alice s3cret 999999999999999999").resumeAfter() == 999_999_999_999_999_999L,
+                "an 18-digit sequence is read");
+    }
+
+    static void malformedLines() {
+        for (String line : new String[] {"", "   ", "alice", "alice s3cret 1 2", "alice s3cret -2",
+                "alice s3cret x", "alice s3cret -", "alice s3cret 1e3", "alice s3cret 1000000000000000000"}) {
+            byte[] bytes = bytes(line);
+            check(!new AuthLine().parse(bytes, 0, bytes.length), "'" + line + "' is refused");
+        }
+        String longest = "alice " + "p".repeat(AuthLine.MAX_BYTES - 6);
+        check(new AuthLine().parse(bytes(longest), 0, AuthLine.MAX_BYTES), "a line of MAX_BYTES is accepted");
+        byte[] tooLong = bytes(longest + "p");
+        check(!new AuthLine().parse(tooLong, 0, tooLong.length), "a longer line is refused unread");
+    }
+
+    static void lineWithinALargerArray() {
+        byte[] buffer = bytes("previous line\nalice s3cret 7\nnext line\n");
+        int offset = "previous line\n".length();
+        AuthLine auth = new AuthLine();
+        check(auth.parse(buffer, offset, "alice s3cret 7".length()), "a line in the middle of a buffer parses");
+        check(auth.user().equals("alice") && auth.resumeAfter() == 7, "only the line's own bytes are read");
+        byte[] password = auth.password();
+        Arrays.fill(buffer, (byte) 0);
+        check(Arrays.equals(password, bytes("s3cret")), "password() is a copy that outlives the buffer");
+    }
+
+    static void reuseForgetsTheLastLine() {
+        AuthLine auth = parsed("alice s3cret 42");
+        byte[] next = bytes("bob builder");
+        check(auth.parse(next, 0, next.length), "a second line parses");
+        check(auth.user().equals("bob") && !auth.sequenced() && auth.resumeAfter() == -1,
+                "nothing carries over from the previous line");
+    }
+
+    static void passwordCheck() {
+        CredentialStore credentials = new CredentialStore(Map.of("alice", "s3cret"), 1000, 0, 0);
+        check(verified(credentials, "alice s3cret"), "the right password matches");
+        check(!verified(credentials, "alice s3cre"), "a prefix of it does not");
+        check(!verified(credentials, "alice S3CRET"), "passwords are case-sensitive");
+        check(!verified(credentials, "mallory s3cret"), "an unknown user never matches");
+    }
+
+    /** Check a line's password as ChatterboxServer.login() does. */
+    private static boolean verified(CredentialStore credentials, String line) {
+        AuthLine auth = parsed(line);
+        byte[] password = auth.password();
+        return credentials.verify(auth.user(), password, 0, password.length);
+    }
+
+    private static AuthLine parsed(String line) {
+        byte[] bytes = bytes(line);
+        AuthLine auth = new AuthLine();
+        check(auth.parse(bytes, 0, bytes.length), "'" + line + "' parses");
+        return auth;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ To compile and run (requires JDK 21 or later):
+
+ javac -d out src/*.java test/*.java && java -cp out LineFramerTest
+*/
+
+/**
+ * Behaviour tests for LineFramer: lines come out the same however the
+ * bytes are split into reads, line endings are handled, and the length
+ * limit holds exactly.
+ *
+ * Plain Java, with no test framework: each test throws an AssertionError
+ * on the first check that fails, and main exits non-zero if any did.
+ */
+public class LineFramerTest {
+    /**
+     * Run every test.
+     *
+     * @param args ignored
+     * @throws IOException if a test fails
+     */
+    public static void main(String[] args) throws IOException {
+        lineEndings();
+        multiByteCharacters();
+        anySplitGivesTheSameLines();
+        randomBytesMatchASimpleSplit();
+        lengthLimit();
+        readFromStream();
+        System.out.println("LineFramerTest: all tests passed");
+    }
+
+    static void lineEndings() throws IOException {
+        List<String> lines = frame("one\ntwo\r\n\n\r\nin\rside\nunfinished", 16, 64);
+        check(lines.equals(List.of("one", "two", "", "", "in\rside")),
+                "LF and CRLF end lines, a lone CR is kept, and an unfinished line waits: " + lines);
+    }
+
+    static void multiByteCharacters() throws IOException {
+        LineFramer framer = new LineFramer(4, 64);
+        framer.append(ByteBuffer.wrap("héllo wörld ✓\n".getBytes(StandardCharsets.UTF_8)));
+        check(framer.nextLine() && framer.line().equals("héllo wörld ✓"), "a line decodes as UTF-8");
+        check(framer.lineLength() == "héllo wörld ✓".getBytes(StandardCharsets.UTF_8).length,
+                "lineLength() counts bytes");
+    }
+
+    static void anySplitGivesTheSameLines() throws IOException {
+        // Lines of every length up to a few words, so each newline lands at every offset in a long.
+        StringBuilder text = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int length = 0; length < 40; length++) {
+            String line = "x".repeat(length);
+            text.append(line).append(length % 3 == 0 ? "\r\n" : "\n");
+            expected.add(line);
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        for (int chunk = 1; chunk <= 17; chunk++) {
+            check(frame(bytes, chunk, 1, 64).equals(expected), "the same lines arrive in chunks of " + chunk);
+        }
+    }
+
+    static void randomBytesMatchASimpleSplit() throws IOException {
+        // Bytes near '\n' and with the high bit set, where a word-at-a-time scan could go wrong.
+        byte[] alphabet = {'\n', 0x0B, 0x09, 0x0A ^ 0x01, (byte) 0x8A, (byte) 0xFF, 0, 'a'};
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            byte[] bytes = new byte[random.nextInt(300)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            List<String> expected = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                    expected.add(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+                    start = i + 1;
+                }
+            }
+            List<String> lines = new ArrayList<>();
+            for (byte[] line : frameBytes(bytes, 1 + random.nextInt(20), 1, 1024)) {
+                lines.add(new String(line, StandardCharsets.ISO_8859_1));
+            }
+            check(lines.equals(expected), "round " + round + " finds the same lines as a byte-by-byte split");
+        }
+    }
+
+    static void lengthLimit() throws IOException {
+        check(frame("12345678\n", 1, 8).equals(List.of("12345678")), "a line of exactly the limit is accepted");
+        check(frame("12345678\r\n", 1, 8).equals(List.of("12345678")),
+                "the limit does not count a CR, even when it arrives on its own");
+        check(fails("123456789\n", 64, 8), "a longer line is refused when its newline arrives with it");
+        check(fails("1234567890", 1, 8), "a longer line is refused before its newline arrives");
+        check(frame("12345678\n".repeat(100), 5, 8).size() == 100, "the limit applies per line, not per read");
+    }
+
+    static void readFromStream() throws IOException {
+        byte[] bytes = "first\nsecond\nthird".getBytes(StandardCharsets.US_ASCII);
+        // A stream that returns at most three bytes per read, like a slow socket.
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+        LineFramer framer = new LineFramer(2, 64);
+        List<String> lines = new ArrayList<>();
+        int total = 0;
+        int n;
+        while ((n = framer.readFrom(in)) >= 0) {
+            total += n;
+            while (framer.nextLine()) {
+                lines.add(framer.line());
+            }
+        }
+        check(total == bytes.length, "readFrom() reads every byte, then reports the end");
+        check(lines.equals(List.of("first", "second")), "lines read from a stream: " + lines);
+    }
+
+    private static List<String> frame(String text, int chunk, int maxLineBytes) throws IOException {
+        return frame(text.getBytes(StandardCharsets.UTF_8), chunk, 1, maxLineBytes);
+    }
+
+    private static List<String> frame(byte[] bytes, int chunk, int initialCapacity, int maxLineBytes)
+            throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (byte[] line : frameBytes(bytes, chunk, initialCapacity, maxLineBytes)) {
+            lines.add(new String(line, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    /** Feed bytes to a new framer in chunks, taking every complete line after each. */
+    private static List<byte[]> frameBytes(byte[] bytes, int chunk, int initialCapacity, int maxLineBytes)
+            throws IOException {
+        LineFramer framer = new LineFramer(initialCapacity, maxLineBytes);
+        List<byte[]> lines = new ArrayList<>();
+        for (int at = 0; at < bytes.length; at += chunk) {
+            framer.append(ByteBuffer.wrap(bytes, at, Math.min(chunk, bytes.length - at)));
+            while (framer.nextLine()) {
+                byte[] line = new byte[framer.lineLength()];
+                System.arraycopy(framer.array(), framer.lineOffset(), line, 0, line.length);
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static boolean fails(String text, int chunk, int maxLineBytes) {
+        try {
+            frame(text, chunk, maxLineBytes);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
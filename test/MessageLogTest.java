@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ To compile and run (requires JDK 21 or later):
+
+ javac -d out src/*.java test/*.java && java -cp out MessageLogTest
+*/
+
+/**
+ * Behaviour tests for MessageLog recovery: reopening a log after a clean
+ * close, after a crash that left a torn record at the end, and without its
+ * index files.
+ *
+ * Plain Java, with no test framework: each test throws an AssertionError
+ * on the first check that fails, and main exits non-zero if any did.
+ */
+public class MessageLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    /**
+     * Run every test.
+     *
+     * @param args ignored
+     * @throws Exception if a test fails
+     */
+    public static void main(String[] args) throws Exception {
+        reopenCarriesOnNumbering();
+        tornRecordIsDropped();
+        missingIndexIsRebuilt();
+        System.out.println("MessageLogTest: all tests passed");
+    }
+
+    static void reopenCarriesOnNumbering() throws IOException {
+        Path directory = Files.createTempDirectory("chatterbox-test");
+        try {
+            try (MessageLog log = open(directory)) {
+                check(log.nextSequence() == 0, "an empty log starts at 0");
+                for (int i = 0; i < 100; i++) {
+                    append(log, i, i % 2 == 0 ? ChatterboxServer.LOBBY : "cs101");
+                }
+            }
+            check(MessageLog.segmentFiles(directory).size() > 1, "100 messages roll over a 4 KB segment");
+            try (MessageLog log = open(directory)) {
+                check(log.nextSequence() == 100, "reopened log carries on at 100, not " + log.nextSequence());
+                List<MessageLog.Entry> all = entries(log);
+                check(all.size() == 100, "all 100 messages read back, not " + all.size());
+                for (int i = 0; i < 100; i++) {
+                    MessageLog.Entry entry = all.get(i);
+                    check(entry.sequence() == i, "message " + i + " in order");
+                    check(entry.timeMillis() == 1000L * i, "message " + i + " keeps its time");
+                    check(entry.room().equals(i % 2 == 0 ? ChatterboxServer.LOBBY : "cs101"),
+                            "message " + i + " keeps its room");
+                    check(entry.text().equals("message " + i), "message " + i + " text is '" + entry.text() + "'");
+                }
+                append(log, 100, ChatterboxServer.LOBBY);
+                check(log.read(new long[] {3, 57, 100}).size() == 3, "read finds messages in old and new segments");
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void tornRecordIsDropped() throws IOException {
+        Path directory = Files.createTempDirectory("chatterbox-test");
+        try {
+            try (MessageLog log = open(directory)) {
+                for (int i = 0; i < 5; i++) {
+                    append(log, i, ChatterboxServer.LOBBY);
+                }
+            }
+            // A crash mid-append: a record's length is written but its bytes run past the segment.
+            Path segment = MessageLog.segmentFiles(directory).get(0);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, SEGMENT_BYTES), end(segment));
+            }
+            try (MessageLog log = open(directory)) {
+                check(log.nextSequence() == 5, "the torn record is not counted");
+                check(entries(log).size() == 5, "the complete records survive");
+                append(log, 5, ChatterboxServer.LOBBY);
+                List<MessageLog.Entry> all = entries(log);
+                check(all.size() == 6 && all.get(5).text().equals("message 5"),
+                        "a new record overwrites the torn one");
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void missingIndexIsRebuilt() throws IOException {
+        Path directory = Files.createTempDirectory("chatterbox-test");
+        try {
+            try (MessageLog log = open(directory)) {
+                for (int i = 0; i < 100; i++) {
+                    append(log, i, ChatterboxServer.LOBBY);
+                }
+            }
+            try (DirectoryStream<Path> indexes = Files.newDirectoryStream(directory, "*" + MessageLog.INDEX_SUFFIX)) {
+                for (Path index : indexes) {
+                    Files.delete(index);
+                }
+            }
+            try (MessageLog log = open(directory)) {
+                List<MessageLog.Entry> recent = log.since(90_000, ChatterboxServer.LOBBY, 1000);
+                check(recent.size() == 10 && recent.get(0).sequence() == 90,
+                        "since() finds the last 10 messages without the old index");
+                check(log.since(0, ChatterboxServer.LOBBY, 7).size() == 7, "since() stops at its limit");
+                check(log.since(0, "cs101", 1000).isEmpty(), "since() keeps to the room asked for");
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static MessageLog open(Path directory) throws IOException {
+        return new MessageLog(directory, SEGMENT_BYTES, MessageLog.FsyncPolicy.NEVER, 0);
+    }
+
+    private static void append(MessageLog log, long sequence, String room) throws IOException {
+        String prefix = ChatterboxServer.LOBBY.equals(room) ? "[sharon]: " : "[sharon@" + room + "]: ";
+        log.append(sequence, 1000L * sequence, "sharon", room,
+                ChatterboxServer.encodeLine(prefix + "message " + sequence));
+    }
+
+    private static List<MessageLog.Entry> entries(MessageLog log) throws IOException {
+        List<MessageLog.Entry> entries = new ArrayList<>();
+        log.forEach(entries::add);
+        return entries;
+    }
+
+    /** @return offset just past the last complete record in a segment file */
+    private static long end(Path segment) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int position = 0;
+        while (position + 4 <= bytes.limit() && bytes.getInt(position) > 0) {
+            position += 4 + bytes.getInt(position);
+        }
+        return position;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
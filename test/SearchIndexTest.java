@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ To compile and run (requires JDK 21 or later):
+
+ javac -d out src/*.java test/*.java && java -cp out SearchIndexTest
+*/
+
+/**
+ * Behaviour tests for SearchIndex: how text is split into terms, which
+ * messages a query finds, checked against a brute-force scan on a history
+ * long enough to need the skip tables, and forgetting messages that history
+ * retention has deleted.
+ *
+ * Plain Java, with no test framework: each test throws an AssertionError
+ * on the first check that fails, and main exits non-zero if any did.
+ */
+public class SearchIndexTest {
+    /**
+     * Run every test.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        termsAreLowerCasedWordsAndNumbers();
+        everyTermMustMatch();
+        searchKeepsToOneRoom();
+        removedMessagesAreForgotten();
+        newestMatchesAgreeWithAScan();
+        System.out.println("SearchIndexTest: all tests passed");
+    }
+
+    static void termsAreLowerCasedWordsAndNumbers() {
+        check(SearchIndex.terms("Hello, World! CS-101").equals(List.of("hello", "world", "cs", "101")),
+                "punctuation splits terms, which are lower-cased");
+        check(SearchIndex.terms("Ünïcödé naïve").equals(List.of("ünïcödé", "naïve")),
+                "letters beyond ASCII count");
+        check(SearchIndex.terms("  ...  ").isEmpty(), "no letters, no terms");
+        String longWord = "a".repeat(SearchIndex.MAX_TERM_LENGTH + 10);
+        check(SearchIndex.terms(longWord).equals(List.of("a".repeat(SearchIndex.MAX_TERM_LENGTH))),
+                "a long word is cut to MAX_TERM_LENGTH");
+    }
+
+    static void everyTermMustMatch() {
+        SearchIndex index = new SearchIndex();
+        index.add(1, ChatterboxServer.LOBBY, "the quick brown fox");
+        index.add(2, ChatterboxServer.LOBBY, "the lazy dog");
+        index.add(3, ChatterboxServer.LOBBY, "quick quick dog");
+        check(Arrays.equals(index.search("quick", ChatterboxServer.LOBBY, 10), new long[] {1, 3}),
+                "one term finds every message with it, once each");
+        check(Arrays.equals(index.search("QUICK dog", ChatterboxServer.LOBBY, 10), new long[] {3}),
+                "two terms find only messages with both");
+        check(index.search("cat", ChatterboxServer.LOBBY, 10).length == 0, "an unknown term finds nothing");
+        check(index.search("!!", ChatterboxServer.LOBBY, 10).length == 0, "a query without terms finds nothing");
+        check(Arrays.equals(index.search("the", ChatterboxServer.LOBBY, 1), new long[] {2}),
+                "the limit keeps the newest matches");
+    }
+
+    static void searchKeepsToOneRoom() {
+        SearchIndex index = new SearchIndex();
+        index.add(1, ChatterboxServer.LOBBY, "exam tomorrow");
+        index.add(2, "cs101", "exam tomorrow");
+        index.add(3, "cs102", "exam moved");
+        check(Arrays.equals(index.search("exam", "cs101", 10), new long[] {2}), "only the room's own messages");
+        check(Arrays.equals(index.search("exam", ChatterboxServer.LOBBY, 10), new long[] {1}),
+                "the lobby is a room like any other");
+        check(index.search("exam", "empty", 10).length == 0, "a room nobody wrote in finds nothing");
+        check(index.search("lobby", ChatterboxServer.LOBBY, 10).length == 0, "a room's name is not a word in it");
+    }
+
+    static void removedMessagesAreForgotten() {
+        SearchIndex index = new SearchIndex();
+        for (int sequence = 0; sequence < 1000; sequence++) {
+            index.add(sequence, ChatterboxServer.LOBBY, sequence < 600 ? "old news" : "news");
+        }
+        int terms = index.termCount();
+        index.removeBefore(900);
+        long[] found = index.search("news", ChatterboxServer.LOBBY, 1000);
+        check(found.length == 100 && found[0] == 900, "a search finds only kept messages, at once");
+        check(index.search("old", ChatterboxServer.LOBBY, 1000).length == 0, "a term only removed messages had");
+
+        MessageBus.Message message = new MessageBus.Message();
+        message.sequence = 1000;
+        message.room = ChatterboxServer.LOBBY;
+        message.text = "fresh news";
+        message.frame = ChatterboxServer.encodeLine("[sharon]: fresh news");
+        index.onMessage(message, true);
+        check(index.termCount() == terms, "the next message prunes 'old' and adds 'fresh', not "
+                + index.termCount() + " term(s)");
+        found = index.search("news", ChatterboxServer.LOBBY, 1000);
+        check(found.length == 101 && found[0] == 900 && found[100] == 1000, "pruned lists still find the rest");
+    }
+
+    static void newestMatchesAgreeWithAScan() {
+        String[] words = {"alpha", "beta", "gamma", "delta", "omega"};
+        String[] rooms = {ChatterboxServer.LOBBY, "cs101"};
+        Random random = new Random(42);
+        SearchIndex index = new SearchIndex();
+        List<String> texts = new ArrayList<>();
+        List<String> inRoom = new ArrayList<>();
+        for (int sequence = 0; sequence < 20_000; sequence++) {
+            StringBuilder text = new StringBuilder();
+            for (String word : words) {
+                // Each word in a different share of messages, so lists differ in length.
+                if (random.nextInt(words.length) <= Arrays.asList(words).indexOf(word)) {
+                    text.append(word).append(' ');
+                }
+            }
+            String room = rooms[random.nextInt(rooms.length)];
+            index.add(sequence, room, text.toString());
+            texts.add(text.toString());
+            inRoom.add(room);
+        }
+        String[] queries = {"alpha", "omega", "alpha beta", "beta delta omega", "alpha beta gamma delta omega"};
+        for (String room : rooms) {
+            for (String query : queries) {
+                for (int limit : new int[] {1, 20, 500, 100_000}) {
+                    List<String> wanted = SearchIndex.terms(query);
+                    List<Long> expected = new ArrayList<>();
+                    for (int sequence = texts.size() - 1; sequence >= 0 && expected.size() < limit; sequence--) {
+                        if (inRoom.get(sequence).equals(room)
+                                && SearchIndex.terms(texts.get(sequence)).containsAll(wanted)) {
+                            expected.add(0, (long) sequence);
+                        }
+                    }
+                    long[] found = index.search(query, room, limit);
+                    check(Arrays.equals(found, expected.stream().mapToLong(Long::longValue).toArray()),
+                            "'" + query + "' in " + room + " with limit " + limit + " finds " + found.length
+                                    + " match(es), not " + expected.size());
+                }
+            }
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ To compile and run (requires JDK 21 or later):
+
+ javac -d out src/*.java test/*.java && java -cp out TokenBucketTest
+*/
+
+/**
+ * Behaviour tests for TokenBucket: the burst a new bucket allows, refilling
+ * over time up to the burst and no further, the long-run rate, and exact
+ * counting when threads share a bucket.
+ *
+ * The timing checks leave wide margins, so a busy machine slows the test
+ * down rather than failing it.
+ *
+ * Plain Java, with no test framework: each test throws an AssertionError
+ * on the first check that fails, and main exits non-zero if any did.
+ */
+public class TokenBucketTest {
+    /**
+     * Run every test.
+     *
+     * @param args ignored
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main(String[] args) throws InterruptedException {
+        newBucketAllowsItsBurst();
+        refillStopsAtTheBurst();
+        longRunRate();
+        sharedBucketCountsExactly();
+        badArguments();
+        System.out.println("TokenBucketTest: all tests passed");
+    }
+
+    static void newBucketAllowsItsBurst() {
+        TokenBucket bucket = new TokenBucket(1, 10);
+        check(bucket.isFull(), "a new bucket is full");
+        for (int i = 0; i < 10; i++) {
+            check(bucket.tryTake(), "token " + (i + 1) + " of the burst is allowed");
+        }
+        check(!bucket.tryTake(), "the token after the burst is refused");
+        check(!bucket.isFull(), "a drained bucket is not full");
+    }
+
+    static void refillStopsAtTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 5);
+        while (bucket.tryTake()) {
+            // drain
+        }
+        Thread.sleep(200); // 20 intervals: far more than the bucket holds
+        check(bucket.isFull(), "an idle bucket fills up");
+        int taken = 0;
+        while (bucket.tryTake()) {
+            taken++;
+        }
+        check(taken >= 5 && taken <= 6, "a refilled bucket allows its burst and no more, not " + taken);
+    }
+
+    static void longRunRate() {
+        TokenBucket bucket = new TokenBucket(200, 10);
+        long start = System.nanoTime();
+        int taken = 0;
+        while (System.nanoTime() - start < 500_000_000L) {
+            if (bucket.tryTake()) {
+                taken++;
+            }
+        }
+        // The burst of 10, then 200 per second for half a second.
+        check(taken >= 60 && taken <= 125, "about 110 tokens in half a second, not " + taken);
+    }
+
+    static void sharedBucketCountsExactly() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, 10_000);
+        AtomicInteger taken = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    if (bucket.tryTake()) {
+                        taken.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // A token or two may have come back while the threads ran.
+        check(taken.get() >= 10_000 && taken.get() <= 10_002,
+                "threads sharing a bucket take its burst between them, not " + taken.get());
+    }
+
+    static void badArguments() {
+        for (int[] args : new int[][] {{0, 1}, {1, 0}, {-1, 5}}) {
+            try {
+                new TokenBucket(args[0], args[1]);
+                throw new AssertionError("TokenBucket(" + args[0] + ", " + args[1] + ") is refused");
+            } catch (IllegalArgumentException expected) {
+                // as it should be
+            }
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}